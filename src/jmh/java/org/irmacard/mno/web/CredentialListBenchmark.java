@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.credentials.info.CredentialIdentifier;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.mno.common.EDLDataMessage;
+import org.irmacard.mno.common.PassportDataMessage;
+import org.irmacard.mno.common.util.GsonUtil;
+import org.jmrtd.lds.icao.DG1File;
+import org.jmrtd.lds.icao.MRZInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the computation of the attributes to issue from passport and driving license data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CredentialListBenchmark {
+	// The specimen MRZ from ICAO Doc 9303
+	private static final String MRZ = "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<"
+			+ "L898902C36UTO7408122F1204159ZE184226B<<<<<10";
+
+	private PassportEnrollmentResource passportResource;
+	private DLEnrollmentResource dlResource;
+	private EnrollmentSession passportSession;
+	private EnrollmentSession dlSession;
+
+	@Setup
+	public void setup() {
+		passportResource = new PassportEnrollmentResource();
+		dlResource = new DLEnrollmentResource();
+
+		dlSession = new EnrollmentSession("dl", new byte[8]);
+		dlSession.setDocumentData(GsonUtil.getGson().fromJson(Fixtures.getEDLJson("dl"), EDLDataMessage.class));
+
+		// Only DG1 (the MRZ) is used to compute the attributes
+		String dg1 = Base64.getEncoder().encodeToString(new DG1File(new MRZInfo(MRZ)).getEncoded());
+		passportSession = new EnrollmentSession("passport", new byte[8]);
+		passportSession.setDocumentData(GsonUtil.getGson().fromJson(
+				"{\"sessionToken\":\"passport\",\"dg1File\":\"" + dg1 + "\"}", PassportDataMessage.class));
+	}
+
+	@Benchmark
+	public HashMap<CredentialIdentifier, HashMap<String, String>> passport() throws InfoException {
+		return passportResource.getCredentialList(passportSession);
+	}
+
+	@Benchmark
+	public HashMap<CredentialIdentifier, HashMap<String, String>> drivingLicense() throws InfoException {
+		return dlResource.getCredentialList(dlSession);
+	}
+}
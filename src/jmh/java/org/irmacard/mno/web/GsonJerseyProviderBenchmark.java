@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.common.EDLDataMessage;
+import org.irmacard.mno.common.util.GsonUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks (de)serializing a driving license message, as done for each verify-document request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GsonJerseyProviderBenchmark {
+	private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+	private GsonJerseyProvider provider;
+	private byte[] json;
+	private EDLDataMessage message;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup() {
+		provider = new GsonJerseyProvider();
+		json = Fixtures.getEDLJson("gson").getBytes(StandardCharsets.UTF_8);
+		message = GsonUtil.getGson().fromJson(Fixtures.getEDLJson("gson"), EDLDataMessage.class);
+		out = new ByteArrayOutputStream(json.length);
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public Object read() throws IOException {
+		Class<Object> type = (Class<Object>) (Class<?>) EDLDataMessage.class;
+		return provider.readFrom(type, EDLDataMessage.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+				new MultivaluedHashMap<String, String>(), new ByteArrayInputStream(json));
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		out.reset();
+		provider.writeTo(message, EDLDataMessage.class, EDLDataMessage.class, NO_ANNOTATIONS,
+				MediaType.APPLICATION_JSON_TYPE, new MultivaluedHashMap<String, Object>(), out);
+		return out.size();
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.irmacard.credentials.info.CredentialIdentifier;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.mno.common.EDLDataMessage;
+import org.irmacard.mno.common.util.GsonUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building the issuing JWTs that are sent to the API server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JwtBenchmark {
+	private PrivateKey privateKey;
+	private HashMap<CredentialIdentifier, HashMap<String, String>> credentialList;
+
+	@Setup
+	public void setup() throws NoSuchAlgorithmException, InfoException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		privateKey = generator.generateKeyPair().getPrivate();
+
+		EnrollmentSession session = new EnrollmentSession("jwt", new byte[8]);
+		session.setDocumentData(GsonUtil.getGson().fromJson(Fixtures.getEDLJson("jwt"), EDLDataMessage.class));
+		credentialList = new DLEnrollmentResource().getCredentialList(session);
+	}
+
+	@Benchmark
+	public String signed() {
+		return ApiClient.getSignedIssuingJWT(credentialList, "MNOServer", SignatureAlgorithm.RS256, privateKey);
+	}
+
+	@Benchmark
+	public String unsigned() {
+		return ApiClient.getUnsignedIssuingJWT(credentialList, "MNOServer");
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the latencies and outcomes of the requests to one endpoint during a load test, and summarizes them.
+ * Every latency is kept, so that the percentiles are exact.
+ */
+public class LatencyRecorder {
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private final String name;
+	private long[] latencies = new long[1024];
+	private int count;
+	private final TreeMap<String, Integer> outcomes = new TreeMap<>();
+
+	public LatencyRecorder(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param nanos Duration of the request
+	 * @param outcome HTTP status of the response, or a description of the failure
+	 */
+	public synchronized void record(long nanos, String outcome) {
+		if (count == latencies.length)
+			latencies = Arrays.copyOf(latencies, count * 2);
+		latencies[count++] = nanos;
+		outcomes.merge(outcome, 1, Integer::sum);
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the amount of requests that did not result in the specified status
+	 */
+	public synchronized int getFailures(String expected) {
+		return count - outcomes.getOrDefault(expected, 0);
+	}
+
+	public static String header() {
+		StringBuilder sb = new StringBuilder(String.format("%-24s %8s %8s %9s", "endpoint", "count", "failed", "req/s"));
+		for (double p : PERCENTILES)
+			sb.append(String.format(" %9s", "p" + format(p)));
+		sb.append(String.format(" %9s  %s", "max", "outcomes (latencies in ms)"));
+		return sb.toString();
+	}
+
+	/**
+	 * @param seconds Duration of the measurement, to compute the throughput
+	 * @param expected The outcome of a successful request
+	 */
+	public synchronized String summary(double seconds, String expected) {
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+
+		StringBuilder sb = new StringBuilder(String.format("%-24s %8d %8d %9.1f",
+				name, count, getFailures(expected), count / seconds));
+		for (double p : PERCENTILES)
+			sb.append(String.format(" %9.2f", millis(percentile(sorted, p))));
+		sb.append(String.format(" %9.2f ", millis(count == 0 ? 0 : sorted[count - 1])));
+		for (Map.Entry<String, Integer> outcome : outcomes.entrySet())
+			sb.append(' ').append(outcome.getKey()).append('=').append(outcome.getValue());
+		return sb.toString();
+	}
+
+	/**
+	 * @return the smallest value such that at least p percent of the values is at most that value
+	 */
+	static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		// The epsilon keeps rounding errors (e.g. 99.9 / 100 * 1000 = 999.0000000000001) from skipping a rank
+		int rank = (int) Math.ceil(p / 100 * sorted.length - 1e-9);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static String format(double p) {
+		return p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import com.google.gson.JsonParser;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.jetty.JettyHttpContainerFactory;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the end-to-end throughput and latency of enrollments, without network access: the MNO server runs
+ * in this JVM (configured by src/loadtest/resources/config.json) against a {@link StubApiServer}, and the
+ * recorded document data of {@link Fixtures} is replayed against /v2/dl (and /v2/passport, if a passport
+ * recording is present) at a fixed rate. Each enrollment does a /start, after which the active authentication
+ * nonce of the new session is set to the one the recording answers, followed by a /verify-document.
+ *
+ * Requests are started on schedule regardless of how many are still running (an open workload), so that a slow
+ * server shows up as higher latency instead of as a lower request rate; enrollments that would exceed
+ * --max-in-flight are skipped and reported.
+ *
+ * Run with <code>gradle loadtest -PloadtestArgs="--rate 100 --duration 60"</code>; see {@link #usage()}.
+ */
+public class LoadTest {
+	private static final byte[] FIXTURE_NONCE = {1, 2, 3, 4, 5, 6, 7, 8};
+
+	private final Map<String, String> options;
+	private final URI base;
+	private final Client client;
+	private final List<String> scenarios = new ArrayList<>();
+	private final Map<String, LatencyRecorder> recorders = new HashMap<>();
+	private final LatencyRecorder enrollments = new LatencyRecorder("enrollment");
+
+	private final int maxInFlight;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong iteration = new AtomicLong();
+	private volatile long measureFrom;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		if (options == null) {
+			System.err.println(usage());
+			System.exit(2);
+		}
+
+		new LoadTest(options).run();
+		System.exit(0);
+	}
+
+	static String usage() {
+		return "Options (defaults in parentheses):\n"
+				+ "  --rate N              enrollments started per second (20)\n"
+				+ "  --duration S          seconds during which results are recorded (30)\n"
+				+ "  --warmup S            seconds of load before recording starts (5)\n"
+				+ "  --scenarios LIST      comma-separated document types to replay: dl, passport (dl,passport)\n"
+				+ "  --max-in-flight N     maximum amount of simultaneous enrollments (1000)\n"
+				+ "  --port N              port of the MNO server (9998)\n"
+				+ "  --api-latency MS      minimum response time of the stub API server (20)\n"
+				+ "  --api-jitter MS       maximum random extra response time of the stub API server (10)\n"
+				+ "  --api-errors F        fraction of API server requests that fail (0)\n"
+				+ "  --api-error-status N  HTTP status of failing API server requests (500)\n"
+				+ "  --report FILE         also write the report to this file";
+	}
+
+	static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		options.put("rate", "20");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("scenarios", "dl,passport");
+		options.put("max-in-flight", "1000");
+		options.put("port", "9998");
+		options.put("api-latency", "20");
+		options.put("api-jitter", "10");
+		options.put("api-errors", "0");
+		options.put("api-error-status", "500");
+
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length || !options.containsKey(args[i].substring(2))
+					&& !args[i].equals("--report"))
+				return null;
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		return options;
+	}
+
+	LoadTest(Map<String, String> options) {
+		this.options = options;
+		this.base = URI.create("http://localhost:" + getInt("port") + "/");
+
+		maxInFlight = getInt("max-in-flight");
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxInFlight);
+		connectionManager.setDefaultMaxPerRoute(maxInFlight);
+
+		ClientConfig config = new ClientConfig();
+		config.connectorProvider(new ApacheConnectorProvider());
+		config.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+		config.property(ClientProperties.ASYNC_THREADPOOL_SIZE, 16);
+		client = ClientBuilder.newClient(config);
+
+		for (String scenario : options.get("scenarios").split(",")) {
+			scenario = scenario.trim();
+			if (scenario.equals("passport") && Fixtures.getPassportJson("") == null) {
+				System.err.println("No passport recording in src/test/resources/fixtures; skipping passport scenario");
+				continue;
+			}
+			if (!scenario.equals("dl") && !scenario.equals("passport"))
+				throw new IllegalArgumentException("Unknown scenario " + scenario);
+			scenarios.add(scenario);
+			recorders.put(scenario + "/start", new LatencyRecorder("/v2/" + scenario + "/start"));
+			recorders.put(scenario + "/verify-document", new LatencyRecorder("/v2/" + scenario + "/verify-document"));
+		}
+		if (scenarios.isEmpty())
+			throw new IllegalArgumentException("No scenarios to run");
+	}
+
+	void run() throws Exception {
+		MNOConfiguration conf = MNOConfiguration.getInstance();
+		URI apiServer = URI.create(conf.getApiServerIssueUrl()).resolve("..");
+		StubApiServer stub = new StubApiServer(getInt("api-latency"), getInt("api-jitter"),
+				Double.parseDouble(options.get("api-errors")), getInt("api-error-status"));
+		stub.start(apiServer);
+		Server server = JettyHttpContainerFactory.createServer(base, new MNOApplication());
+
+		int rate = getInt("rate");
+		long warmup = TimeUnit.SECONDS.toNanos(getInt("warmup"));
+		long duration = TimeUnit.SECONDS.toNanos(getInt("duration"));
+		System.out.printf("Starting %d enrollments/s against %s (stub API server at %s) for %d+%d seconds%n",
+				rate, base, apiServer, getInt("warmup"), getInt("duration"));
+
+		ScheduledExecutorService generator = Executors.newSingleThreadScheduledExecutor();
+		long start = System.nanoTime();
+		measureFrom = start + warmup;
+		ScheduledFuture<?> task = generator.scheduleAtFixedRate(this::startEnrollment,
+				0, TimeUnit.SECONDS.toNanos(1) / rate, TimeUnit.NANOSECONDS);
+
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(warmup + duration));
+		task.cancel(false);
+		long measured = System.nanoTime() - measureFrom;
+
+		// Let the running enrollments finish
+		for (int i = 0; i < 300 && inFlight.get() > 0; i++)
+			Thread.sleep(100);
+		generator.shutdown();
+
+		report(System.out, measured / 1e9, stub);
+		if (options.containsKey("report")) {
+			try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(options.get("report"))),
+					false, StandardCharsets.UTF_8.name())) {
+				report(out, measured / 1e9, stub);
+			}
+		}
+
+		server.stop();
+		stub.stop();
+		client.close();
+	}
+
+	private void startEnrollment() {
+		if (inFlight.incrementAndGet() > maxInFlight) {
+			inFlight.decrementAndGet();
+			skipped.incrementAndGet();
+			return;
+		}
+
+		final String scenario = scenarios.get((int) (iteration.getAndIncrement() % scenarios.size()));
+		final long start = System.nanoTime();
+
+		request(scenario + "/start", "GET", null)
+				.thenCompose(response -> {
+					String token = new JsonParser().parse(response).getAsJsonObject().get("sessionToken").getAsString();
+					EnrollmentSessions sessions = EnrollmentSessions.getSessions();
+					EnrollmentSession session = sessions.getSession(token);
+					session.setAANonce(FIXTURE_NONCE);
+					sessions.update(session);
+
+					String json = scenario.equals("dl") ? Fixtures.getEDLJson(token) : Fixtures.getPassportJson(token);
+					return request(scenario + "/verify-document", "POST", json);
+				})
+				.whenComplete((response, ex) -> {
+					inFlight.decrementAndGet();
+					if (start >= measureFrom)
+						enrollments.record(System.nanoTime() - start, ex == null ? "200" : "failed");
+				});
+	}
+
+	/**
+	 * Send a request to the MNO server
+	 * @return A future that completes with the response body, or exceptionally if the status is not 200
+	 */
+	private CompletableFuture<String> request(String endpoint, String method, String json) {
+		final CompletableFuture<String> future = new CompletableFuture<>();
+		final LatencyRecorder recorder = recorders.get(endpoint);
+		final long start = System.nanoTime();
+
+		client.target(base).path("v2/" + endpoint).request(MediaType.APPLICATION_JSON).async().method(method,
+				json == null ? null : Entity.entity(json, MediaType.APPLICATION_JSON),
+				new InvocationCallback<Response>() {
+					@Override
+					public void completed(Response response) {
+						String body = response.readEntity(String.class);
+						record(Integer.toString(response.getStatus()));
+						if (response.getStatus() == 200)
+							future.complete(body);
+						else
+							future.completeExceptionally(new IllegalStateException(response.getStatus() + ": " + body));
+					}
+
+					@Override
+					public void failed(Throwable throwable) {
+						record(throwable.getClass().getSimpleName());
+						future.completeExceptionally(throwable);
+					}
+
+					private void record(String outcome) {
+						if (start >= measureFrom)
+							recorder.record(System.nanoTime() - start, outcome);
+					}
+				});
+
+		return future;
+	}
+
+	private void report(PrintStream out, double seconds, StubApiServer stub) {
+		out.println();
+		out.println(LatencyRecorder.header());
+		for (String scenario : scenarios) {
+			out.println(recorders.get(scenario + "/start").summary(seconds, "200"));
+			out.println(recorders.get(scenario + "/verify-document").summary(seconds, "200"));
+		}
+		out.println(enrollments.summary(seconds, "200"));
+		out.println();
+		out.printf("Skipped enrollments (more than %d in flight): %d%n", maxInFlight, skipped.get());
+		out.printf("Stub API server: %d sessions created, %d errors injected%n",
+				stub.getSessionCount(), stub.getErrorCount());
+	}
+
+	private int getInt(String option) {
+		return Integer.parseInt(options.get(option));
+	}
+}
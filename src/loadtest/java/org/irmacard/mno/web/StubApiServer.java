@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.jetty.JettyHttpContainerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the IRMA API server during load tests: accepts any JWT at /issue/ and /verification/, and
+ * answers with a session QR after a configurable (randomized) latency. A fraction of the requests can be
+ * answered with an error instead. Responses are delayed without holding a Jetty thread.
+ */
+public class StubApiServer {
+	private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, r -> {
+		Thread t = new Thread(r, "stub-api-server");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final long latency;
+	private final long jitter;
+	private final double errorRate;
+	private final int errorStatus;
+
+	private final AtomicLong sessions = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private Server server;
+
+	/**
+	 * @param latency Minimum time in milliseconds before a response is sent
+	 * @param jitter Maximum amount of milliseconds randomly added to the latency
+	 * @param errorRate Fraction of requests that fail
+	 * @param errorStatus HTTP status of failed requests (e.g. 500, or 503 to trigger retries)
+	 */
+	public StubApiServer(long latency, long jitter, double errorRate, int errorStatus) {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.errorRate = errorRate;
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * Start serving at the host and port of the specified URL, e.g. http://localhost:8089/irma_api_server/api/v2/;
+	 * any path ending in /issue/ or /verification/ is accepted
+	 */
+	public void start(URI url) {
+		ResourceConfig config = new ResourceConfig();
+		config.registerInstances(new Endpoints(this));
+		server = JettyHttpContainerFactory.createServer(URI.create("http://localhost:" + url.getPort() + "/"), config);
+	}
+
+	public void stop() throws Exception {
+		if (server != null)
+			server.stop();
+	}
+
+	public long getSessionCount() {
+		return sessions.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	private void respond(final String type, final AsyncResponse response) {
+		long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+		timer.schedule(() -> {
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				errors.incrementAndGet();
+				response.resume(Response.status(errorStatus)
+						.entity("{\"status\":" + errorStatus + ",\"error\":\"EXCEPTION\","
+								+ "\"description\":\"Injected by the load test\"}")
+						.type(MediaType.APPLICATION_JSON)
+						.build());
+				return;
+			}
+
+			byte[] token = new byte[15];
+			ThreadLocalRandom.current().nextBytes(token);
+			sessions.incrementAndGet();
+			response.resume(Response.ok("{\"u\":\"" + Base64.getUrlEncoder().encodeToString(token)
+					+ "\",\"v\":\"2.0\",\"vmax\":\"2.0\",\"irmaqr\":\"" + type + "\"}", MediaType.APPLICATION_JSON)
+					.build());
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Serves all paths, so that the stub works regardless of the path of api_server
+	 */
+	@Path("{path: .*}")
+	public static class Endpoints {
+		private final StubApiServer stub;
+
+		Endpoints(StubApiServer stub) {
+			this.stub = stub;
+		}
+
+		@POST
+		@Consumes(MediaType.TEXT_PLAIN)
+		@Produces(MediaType.APPLICATION_JSON)
+		public void post(@PathParam("path") String path, String jwt, @Suspended AsyncResponse response) {
+			if (path.endsWith("issue") || path.endsWith("issue/"))
+				stub.respond("issuing", response);
+			else if (path.endsWith("verification") || path.endsWith("verification/"))
+				stub.respond("disclosing", response);
+			else
+				response.resume(Response.status(Response.Status.NOT_FOUND).build());
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Protects the operational endpoints ({@link MetricsResource} and {@link TraceResource}), which reveal the load
+ * of the server and the timing of individual enrollments. These require an "Authorization: Bearer" header with
+ * the admin_token from the {@link MNOConfiguration}; if no token is configured, they do not exist (404).
+ */
+public class AdminAuthFeature implements DynamicFeature {
+	@Override
+	public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+		Class<?> resource = resourceInfo.getResourceClass();
+		if (resource == MetricsResource.class || resource == TraceResource.class)
+			context.register(new Filter());
+	}
+
+	static class Filter implements ContainerRequestFilter {
+		@Override
+		public void filter(ContainerRequestContext request) {
+			String token = MNOConfiguration.getInstance().getAdminToken();
+			if (token.isEmpty())
+				throw new NotFoundException();
+			if (!isAuthorized(request.getHeaderString(HttpHeaders.AUTHORIZATION), token))
+				throw new NotAuthorizedException("Bearer");
+		}
+
+		/**
+		 * @param header The Authorization header of the request, may be null
+		 * @param token The configured token
+		 * @return true if the header contains the token as bearer token
+		 */
+		static boolean isAuthorized(String header, String token) {
+			if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7))
+				return false;
+
+			// Compare in constant time, so that the token cannot be guessed byte by byte
+			return MessageDigest.isEqual(header.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+					token.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes the "overX" attributes of an age credential from a date of birth. The cutoff dates (i.e. the latest
+ * date of birth for which someone is at least X years old today) are computed once per day, after which a date
+ * of birth is classified by comparing epoch days. Someone born on February 29 becomes a year older on March 1
+ * in years that are not leap years.
+ */
+public class AgeThresholds {
+	private static volatile Map<String, AgeThresholds> configured;
+	private static volatile MNOConfiguration loadedFrom;
+
+	private final int[] ages;
+	private final String[] names;
+	private final Clock clock;
+	private volatile Cutoffs cutoffs;
+
+	/**
+	 * The cutoff dates that are valid between two instants (normally the start and end of a day)
+	 */
+	private static class Cutoffs {
+		final long from;
+		final long until;
+		final long[] days;
+
+		Cutoffs(long from, long until, long[] days) {
+			this.from = from;
+			this.until = until;
+			this.days = days;
+		}
+	}
+
+	public AgeThresholds(int[] ages) {
+		this(ages, Clock.systemDefaultZone());
+	}
+
+	public AgeThresholds(int[] ages, Clock clock) {
+		this.ages = ages.clone();
+		this.clock = clock;
+		this.names = new String[ages.length];
+		for (int i = 0; i < ages.length; i++)
+			names[i] = "over" + ages[i];
+	}
+
+	/**
+	 * @return per credential name (e.g. "ageLower"), the thresholds of the configuration
+	 */
+	public static Map<String, AgeThresholds> forConfiguration(MNOConfiguration conf) {
+		Map<String, AgeThresholds> thresholds = configured;
+		if (thresholds != null && conf == loadedFrom)
+			return thresholds;
+
+		thresholds = new LinkedHashMap<>();
+		for (Map.Entry<String, int[]> entry : conf.getAgeAttributes().entrySet())
+			thresholds.put(entry.getKey(), new AgeThresholds(entry.getValue()));
+		thresholds = Collections.unmodifiableMap(thresholds);
+
+		configured = thresholds;
+		loadedFrom = conf;
+		return thresholds;
+	}
+
+	public HashMap<String, String> evaluate(LocalDate dob) {
+		return evaluate(dob.toEpochDay());
+	}
+
+	/**
+	 * @param dob Date of birth, in days since the epoch
+	 * @return For each threshold X, "overX" mapped to "yes" or "no"
+	 */
+	public HashMap<String, String> evaluate(long dob) {
+		long[] days = getCutoffs();
+		HashMap<String, String> attrs = new HashMap<>();
+
+		for (int i = 0; i < days.length; i++)
+			attrs.put(names[i], dob <= days[i] ? "yes" : "no");
+
+		return attrs;
+	}
+
+	private long[] getCutoffs() {
+		long now = clock.millis();
+		Cutoffs c = cutoffs;
+		if (c == null || now < c.from || now >= c.until) {
+			c = computeCutoffs(now);
+			cutoffs = c;
+		}
+
+		return c.days;
+	}
+
+	private Cutoffs computeCutoffs(long now) {
+		ZoneId zone = clock.getZone();
+		LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+
+		long[] days = new long[ages.length];
+		for (int i = 0; i < ages.length; i++)
+			days[i] = today.minusYears(ages[i]).toEpochDay();
+
+		long from = today.atStartOfDay(zone).toInstant().toEpochMilli();
+		long until = today.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+		return new Cutoffs(from, until, days);
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.irmacard.api.common.ClientQr;
+import org.irmacard.api.common.exceptions.ApiException;
+import org.irmacard.mno.web.exceptions.ServerBusyException;
+
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A request to the API server to create a session, sent through the shared client of {@link ApiClient}.
+ * <ul>
+ *     <li>Requests that certainly did not reach the API server (e.g. because the connection was refused),
+ *     and 503 responses, are retried a few times after a random (jittered) backoff. Requests that may have
+ *     reached it (e.g. because the connection was closed before a response arrived) are not retried, as
+ *     sending them again could create a second session.</li>
+ *     <li>If a secondary API server is configured, and the primary one did not answer within the hedge delay,
+ *     the request is also sent to the secondary server; the first session that is created is used. If the
+ *     primary server fails before the hedge delay has passed, the request waits for the secondary server.</li>
+ *     <li>Each endpoint has a {@link CircuitBreaker}, so that when the API server is down requests fail
+ *     immediately with a {@link ServerBusyException} instead of piling up.</li>
+ * </ul>
+ */
+class ApiCall {
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "api-retry");
+		t.setDaemon(true);
+		return t;
+	});
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	private static final Metrics.Counter retries = Metrics.getInstance().counter("mno_api_retries_total",
+			"Requests to the API server that were retried", "type");
+	private static final Metrics.Counter hedges = Metrics.getInstance().counter("mno_api_hedges_total",
+			"Hedged requests to the secondary API server, per outcome (sent or won)", "type", "outcome");
+
+	private final String jwt;
+	private final String type;
+	private final Span span;
+	private final int maxRetries;
+	private final int retryBackoff;
+	private final CompletableFuture<ClientQr> result = new CompletableFuture<>();
+
+	// The amount of servers to which the request is still being sent (including retries)
+	private final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * @param type The kind of session ("issue" or "disclosure"), used for the metrics and circuit breaker
+	 * @param maxRetries Maximum amount of retries per server
+	 * @param retryBackoff Maximum delay in milliseconds before the first retry, doubling for every next one
+	 */
+	ApiCall(String jwt, String type, Span span, int maxRetries, int retryBackoff) {
+		this.jwt = jwt;
+		this.type = type;
+		this.span = span;
+		this.maxRetries = maxRetries;
+		this.retryBackoff = retryBackoff;
+	}
+
+	/**
+	 * Send the JWT to the server, and to the secondary server (if not null) if the first one is too slow
+	 * @param type The kind of session ("issue" or "disclosure"), used for the metrics and circuit breaker
+	 * @return A future that completes with the session
+	 */
+	static CompletableFuture<ClientQr> start(String jwt, String server, String secondary, String type, Span span) {
+		MNOConfiguration conf = MNOConfiguration.getInstance();
+		return new ApiCall(jwt, type, span, conf.getApiRetries(), conf.getApiRetryBackoff())
+				.start(server, secondary, conf.getApiHedgeDelay(), getBreaker(type));
+	}
+
+	/**
+	 * @param hedgeDelay Milliseconds after which the request is also sent to the secondary server, if it is not null
+	 */
+	CompletableFuture<ClientQr> start(String server, final String secondary, int hedgeDelay, final CircuitBreaker breaker) {
+		if (!breaker.allowRequest()) {
+			result.completeExceptionally(new ServerBusyException(breaker.getRetryAfter()));
+			return result;
+		}
+
+		result.whenComplete((qr, ex) -> {
+			if (ex == null || !isServerFailure(ex))
+				breaker.onSuccess();
+			else
+				breaker.onFailure();
+		});
+
+		// Count the hedge before sending, so that a failure of the primary server does not fail the request if the
+		// hedge is still to come
+		boolean hedged = secondary != null && hedgeDelay > 0;
+		running.set(hedged ? 2 : 1);
+		send(server, 0, false);
+
+		if (hedged) {
+			timer.schedule(() -> {
+				if (result.isDone()) {
+					running.decrementAndGet();
+					return;
+				}
+				hedges.inc(type, "sent");
+				send(secondary, 0, true);
+			}, hedgeDelay, TimeUnit.MILLISECONDS);
+		}
+
+		return result;
+	}
+
+	private static CircuitBreaker getBreaker(String type) {
+		CircuitBreaker breaker = breakers.get(type);
+		// The breaker keeps its state across configuration reloads, but uses the thresholds of the current one
+		if (breaker == null)
+			breaker = breakers.computeIfAbsent(type, t -> new CircuitBreaker(t,
+					() -> MNOConfiguration.getInstance().getApiCircuitFailures(),
+					() -> TimeUnit.SECONDS.toNanos(MNOConfiguration.getInstance().getApiCircuitOpenTime())));
+		return breaker;
+	}
+
+	private void send(final String server, final int attempt, final boolean hedge) {
+		CompletionStage<ClientQr> response;
+		try {
+			response = post(server);
+		} catch (RuntimeException e) {
+			fail(e);
+			return;
+		}
+
+		response.whenComplete((qr, ex) -> {
+			if (ex == null)
+				succeed(qr, hedge);
+			else if (!isRetriable(ex) || !retry(server, attempt, hedge))
+				fail(ex);
+		});
+	}
+
+	/**
+	 * Send the JWT to the server once
+	 * @return A stage that completes with the session, or exceptionally with a {@link ServiceUnavailableException}
+	 * on a 503 response, or with the exception of the client if there was no response
+	 */
+	CompletionStage<ClientQr> post(final String server) {
+		final CompletableFuture<ClientQr> qr = new CompletableFuture<>();
+		Invocation.Builder request = ApiClient.getClient().target(server).request(MediaType.APPLICATION_JSON_TYPE);
+		if (span.isSampled())
+			request.header(Tracing.HEADER, span.getTraceparent());
+
+		request.async().post(Entity.entity(jwt, MediaType.TEXT_PLAIN), new InvocationCallback<Response>() {
+			@Override
+			public void completed(Response response) {
+				if (response.getStatus() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+					response.close();
+					qr.completeExceptionally(new ServiceUnavailableException());
+					return;
+				}
+
+				try {
+					// Read the body regardless of the status, as the API server reports errors as JSON
+					qr.complete(ApiClient.parseQr(response.readEntity(String.class), server, type));
+				} catch (RuntimeException e) {
+					qr.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void failed(Throwable throwable) {
+				qr.completeExceptionally(throwable);
+			}
+		});
+		return qr;
+	}
+
+	/**
+	 * Schedule another attempt after a random delay of at most the backoff, which doubles every attempt
+	 * @return false if no attempts are left
+	 */
+	private boolean retry(final String server, final int attempt, final boolean hedge) {
+		if (attempt >= maxRetries || result.isDone())
+			return false;
+
+		long backoff = (long) retryBackoff << attempt;
+		long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+		retries.inc(type);
+		timer.schedule(() -> send(server, attempt + 1, hedge), delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	private void succeed(ClientQr qr, boolean hedge) {
+		if (result.complete(qr) && hedge)
+			hedges.inc(type, "won");
+	}
+
+	/**
+	 * Fail the request if no other server is still trying
+	 */
+	private void fail(Throwable ex) {
+		if (running.decrementAndGet() <= 0)
+			result.completeExceptionally(ex);
+	}
+
+	/**
+	 * @return true if the request certainly did not create a session at the API server (it was not sent, or the
+	 * server answered 503), so that it is safe to send it again. A NoHttpResponseException is not retried: the
+	 * server may have received, and acted on, the request before the connection was closed.
+	 */
+	static boolean isRetriable(Throwable ex) {
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+					|| cause instanceof ConnectionPoolTimeoutException || cause instanceof NoRouteToHostException
+					|| cause instanceof UnknownHostException || cause instanceof ServiceUnavailableException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the exception indicates that the API server is not working properly (as opposed to an
+	 * error message about the request)
+	 */
+	private static boolean isServerFailure(Throwable ex) {
+		if (ex instanceof CompletionException && ex.getCause() != null)
+			ex = ex.getCause();
+		return !(ex instanceof ApiException);
+	}
+}
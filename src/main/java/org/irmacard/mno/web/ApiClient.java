@@ -14,20 +14,65 @@ import org.irmacard.api.common.util.GsonUtil;
 import org.irmacard.credentials.Attributes;
 import org.irmacard.credentials.info.CredentialIdentifier;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 /**
- * Issuing client for the irma_api_server. Usage: call {@link #createIssuingSession(HashMap, String, SignatureAlgorithm, PrivateKey)}.
+ * Issuing client for the irma_api_server. Usage: call {@link #createIssuingSession(HashMap, String, SignatureAlgorithm, PrivateKey)},
+ * or {@link #createIssuingSessionAsync(HashMap, String, SignatureAlgorithm, PrivateKey)} to not block the calling thread.
+ * All requests share a single HTTP client that keeps a pool of persistent connections to the API server.
  */
 public class ApiClient {
+	private static final Logger logger = LoggerFactory.getLogger(ApiClient.class);
+	private static final Client client = createClient(MNOConfiguration.getInstance());
+	private static final String UNSIGNED_HEADER = encodeBase64("{\"typ\":\"JWT\",\"alg\":\"none\"}");
+
+	private static final Metrics.Histogram latency = Metrics.getInstance().histogram("mno_api_request_duration_seconds",
+			"Round trip time of session requests to the API server, per session type", "type");
+	private static final Metrics.Counter errors = Metrics.getInstance().counter("mno_api_errors_total",
+			"Failed session requests to the API server, per ApiError (or HTTP status or TRANSPORT)", "type", "error");
+
+	private static Client createClient(MNOConfiguration conf) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(conf.getApiMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(conf.getApiMaxConnections());
+
+		ClientConfig config = new ClientConfig();
+		config.connectorProvider(new ApacheConnectorProvider());
+		config.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+		config.property(ClientProperties.ASYNC_THREADPOOL_SIZE, conf.getApiAsyncThreads());
+		config.property(ClientProperties.CONNECT_TIMEOUT, conf.getApiConnectTimeout());
+		config.property(ClientProperties.READ_TIMEOUT, conf.getApiReadTimeout());
+		// Also do not wait indefinitely for a connection from the pool
+		config.property(ApacheClientProperties.REQUEST_CONFIG, RequestConfig.custom()
+				.setConnectionRequestTimeout(conf.getApiConnectTimeout())
+				.build());
+
+		return ClientBuilder.newClient(config);
+	}
+
+	static Client getClient() {
+		return client;
+	}
+
 	/**
 	 * Informs the API server of the credentials that we want issued, and returns the resulting session
 	 * @param credentialList The credentials and their attributes to issue
@@ -38,50 +83,158 @@ public class ApiClient {
 	public static ClientQr createIssuingSession(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss, SignatureAlgorithm sigAlg, PrivateKey privKey) {
 		String server = MNOConfiguration.getInstance().getApiServerIssueUrl();
 		String jwt = getIssuingJWT(credentialList, iss, sigAlg, privKey);
-		System.out.println("created JWT: " + jwt);
-		return createSession(jwt,server);
+		return createSession(jwt, server, MNOConfiguration.getInstance().getSecondaryApiServerIssueUrl(), "issue");
 
 	}
 
 	public static ClientQr createDisclosureSession(AttributeDisjunctionList list, String iss, String keyId, SignatureAlgorithm sigAlg, PrivateKey privKey){
 		String server = MNOConfiguration.getInstance().getApiServerDisclosureUrl();
 		String jwt = getDisclosureJWT(list, keyId, iss, sigAlg, privKey);
-		System.out.println("created JWT: " + jwt);
+		return createSession(jwt, server, MNOConfiguration.getInstance().getSecondaryApiServerDisclosureUrl(), "disclosure");
+	}
+
+	/**
+	 * Like {@link #createIssuingSession(HashMap, String, SignatureAlgorithm, PrivateKey)}, but does not wait
+	 * for the API server to respond.
+	 */
+	public static CompletionStage<ClientQr> createIssuingSessionAsync(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss, SignatureAlgorithm sigAlg, PrivateKey privKey) {
+		return createIssuingSessionAsync(credentialList, iss, sigAlg, privKey, Span.NOOP);
+	}
+
+	/**
+	 * Like {@link #createIssuingSessionAsync(HashMap, String, SignatureAlgorithm, PrivateKey)}, recording the
+	 * signing of the JWT and the request to the API server as children of the specified span. If batching is
+	 * enabled in the configuration, the request is sent as part of a batch by {@link IssuingBatcher}.
+	 */
+	public static CompletionStage<ClientQr> createIssuingSessionAsync(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss, SignatureAlgorithm sigAlg, PrivateKey privKey, Span trace) {
+		Span signing = trace.child("jwt.sign");
+		String jwt;
+		try {
+			jwt = getIssuingJWT(credentialList, iss, sigAlg, privKey);
+		} finally {
+			signing.end();
+		}
 
-		return createSession(jwt,server);
+		IssuingBatcher batcher = IssuingBatcher.getInstance();
+		if (batcher != null)
+			return batcher.submit(jwt, trace);
+		return postIssuingJwt(jwt, trace);
 	}
 
-	private static ClientQr createSession(String jwt, String server){
-		// Post our JWT
-		System.out.println("requesting discl QR to " + server);
-		String qrString = ClientBuilder.newClient().target(server)
-				.request(MediaType.APPLICATION_JSON_TYPE)
-				.post(Entity.entity(jwt, MediaType.TEXT_PLAIN), String.class);
-		System.out.println("Received qrString:" + qrString);
+	/**
+	 * Send the issuing JWT to the API server
+	 */
+	static CompletionStage<ClientQr> postIssuingJwt(String jwt, Span trace) {
+		MNOConfiguration conf = MNOConfiguration.getInstance();
+		return createSessionAsync(jwt, conf.getApiServerIssueUrl(), conf.getSecondaryApiServerIssueUrl(), "issue", trace);
+	}
 
-		// Try to parse the output of the server as a QR
+	/**
+	 * Send a signed disclosure JWT to the API server
+	 */
+	static CompletionStage<ClientQr> postDisclosureJwt(String jwt, Span trace) {
+		MNOConfiguration conf = MNOConfiguration.getInstance();
+		return createSessionAsync(jwt, conf.getApiServerDisclosureUrl(), conf.getSecondaryApiServerDisclosureUrl(),
+				"disclosure", trace);
+	}
+
+	/**
+	 * Like {@link #createDisclosureSession(AttributeDisjunctionList, String, String, SignatureAlgorithm, PrivateKey)},
+	 * but does not wait for the API server to respond.
+	 */
+	public static CompletionStage<ClientQr> createDisclosureSessionAsync(AttributeDisjunctionList list, String iss, String keyId, SignatureAlgorithm sigAlg, PrivateKey privKey) {
+		String server = MNOConfiguration.getInstance().getApiServerDisclosureUrl();
+		String jwt = getDisclosureJWT(list, keyId, iss, sigAlg, privKey);
+		return createSessionAsync(jwt, server, MNOConfiguration.getInstance().getSecondaryApiServerDisclosureUrl(),
+				"disclosure", Span.NOOP);
+	}
+
+	private static ClientQr createSession(String jwt, String server, String secondary, String type){
 		try {
-			ClientQr qr = GsonUtil.getGson().fromJson(qrString, ClientQr.class);
-			if (qr.getUrl() == null || qr.getUrl().length() == 0
-					|| qr.getVersion() == null || qr.getVersion().length() == 0) {
-				System.out.println("QR niet oke");
-				throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+			return createSessionAsync(jwt, server, secondary, type, Span.NOOP).toCompletableFuture().join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	private static CompletionStage<ClientQr> createSessionAsync(String jwt, String server, String secondary,
+	                                                            final String type, Span trace) {
+		final Span span = trace.child("api.post").tag("type", type);
+		final long start = System.nanoTime();
+
+		logRequest(jwt, server, type);
+		CompletableFuture<ClientQr> future = ApiCall.start(jwt, server, secondary, type, span);
+		future.whenComplete((qr, ex) -> {
+			latency.observe(System.nanoTime() - start, type);
+			if (ex != null) {
+				String error = getErrorName(ex);
+				errors.inc(type, error);
+				span.tag("error", error);
 			}
-			qr.setUrl(server + qr.getUrl()); // Let the token know where to find the server
-			return qr;
+			span.end();
+		});
+
+		return future;
+	}
+
+	/**
+	 * @return The {@link org.irmacard.api.common.exceptions.ApiError} of the exception if it came from the
+	 * API server, and otherwise its HTTP status or "TRANSPORT"
+	 */
+	private static String getErrorName(Throwable e) {
+		if (e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+
+		if (e instanceof ApiException)
+			return ((ApiException) e).getError() != null ? ((ApiException) e).getError().name() : "UNKNOWN";
+		if (e instanceof WebApplicationException)
+			return "HTTP_" + ((WebApplicationException) e).getResponse().getStatus();
+		return "TRANSPORT";
+	}
+
+	private static void logRequest(final String jwt, String server, String type) {
+		if (logger.isDebugEnabled() && Logging.sample("api"))
+			logger.debug("event=api_request type={} server={} jwt={}", type, server, Logging.lazy(() -> jwt));
+	}
+
+	static ClientQr parseQr(final String qrString, String server, String type) {
+		if (logger.isDebugEnabled() && Logging.sample("api"))
+			logger.debug("event=api_response type={} response={}", type, Logging.lazy(() -> qrString));
+
+		// Try to parse the output of the server as a QR
+		ClientQr qr;
+		try {
+			qr = GsonUtil.getGson().fromJson(qrString, ClientQr.class);
 		} catch (JsonParseException e) {
-			e.printStackTrace();
+			logger.warn("event=api_response_unparseable type={} error={}", type, Logging.lazy(e::getMessage));
+			qr = null;
+		}
+
+		if (qr == null || qr.getUrl() == null || qr.getUrl().length() == 0
+				|| qr.getVersion() == null || qr.getVersion().length() == 0) {
+			// If it is not a QR then it could be an error message from the API server.
+			// Try to deserialize it as such; if it is, then we rethrow it to the token
+			ApiErrorMessage apiError = null;
 			try {
-				// If it is not a QR then it could be an error message from the API server.
-				// Try to deserialize it as such; if it is, then we rethrow it to the token
-				ApiErrorMessage apiError = GsonUtil.getGson().fromJson(qrString, ApiErrorMessage.class);
-				System.out.println("ApiError:" + apiError.getMessage());
-				throw new ApiException(apiError.getError(), "Error from issuing server");
-			} catch (Exception parseEx) {
+				apiError = GsonUtil.getGson().fromJson(qrString, ApiErrorMessage.class);
+			} catch (JsonParseException e) {
 				// Not an ApiErrorMessage
-				throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
 			}
+			if (apiError != null && apiError.getError() != null) {
+				final ApiErrorMessage error = apiError;
+				logger.warn("event=api_error type={} error={} message={}",
+						type, error.getError(), Logging.lazy(error::getMessage));
+				throw new ApiException(apiError.getError(), "Error from issuing server");
+			}
+
+			logger.warn("event=api_response_invalid type={}", type);
+			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
 		}
+
+		qr.setUrl(server + qr.getUrl()); // Let the token know where to find the server
+		return qr;
 	}
 
 		//Copied from IRMA api common to quickly get disclosure working
@@ -91,9 +244,17 @@ public class ApiClient {
 	}
 
 	public static String getDisclosureJWT(AttributeDisjunctionList list, String keyID, String iss, SignatureAlgorithm sigAlg, PrivateKey privKey) {
+		return buildJwt(keyID, sigAlg, privKey, getDisclosureJwtClaims(list, iss, System.currentTimeMillis() / 1000));
+	}
+
+	/**
+	 * Serialize a disclosure request to the body (claims) of a JWT token
+	 * @param iat The time at which the token is issued, in seconds since the epoch
+	 */
+	static String getDisclosureJwtClaims(AttributeDisjunctionList list, String iss, long iat) {
 		DisclosureProofRequest request = new DisclosureProofRequest(null, null, list);
 		ServiceProviderRequest spRequest = new ServiceProviderRequest("", request, 120);
-		return buildJwt(keyID, sigAlg, privKey, getJwtClaims(spRequest, "sprequest", "verification_request", iss));
+		return getJwtClaims(spRequest, "sprequest", "verification_request", iss, iat);
 	}
 
 	/**
@@ -102,17 +263,21 @@ public class ApiClient {
 	private static String getJwtClaims(ClientRequest request,
 									   String type,
 									   String subject,
-									   String iss) {
+									   String iss,
+									   long iat) {
 		HashMap<String, Object> claims = new HashMap<>(4);
 		claims.put(type, request);
-		claims.put("iat", System.currentTimeMillis() / 1000);
+		claims.put("iat", iat);
 		claims.put("iss", iss);
 		claims.put("sub", subject);
 
 		return GsonUtil.getGson().toJson(claims);
 	}
 
-	private static String buildJwt(String keyID, SignatureAlgorithm sigAlg, PrivateKey privKey, String request) {
+	static String buildJwt(String keyID, SignatureAlgorithm sigAlg, PrivateKey privKey, String request) {
+		if (JwtSigner.supports(sigAlg))
+			return JwtSigner.get(sigAlg, privKey).sign(keyID, request);
+
 		JwtBuilder builder = Jwts.builder();
 		if (keyID != null)
 			builder.setHeaderParam("kid", keyID);
@@ -129,18 +294,13 @@ public class ApiClient {
 				getUnsignedIssuingJWT(credentialList,iss);
 	}
 
-	private static String getSignedIssuingJWT(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss, SignatureAlgorithm sigAlg, PrivateKey privKey) {
-		return Jwts.builder()
-				.setPayload(getJwtClaims(credentialList,iss))
-				.signWith(sigAlg,//MNOConfiguration.getInstance().getJwtAlgorithm(),
-						privKey)//MNOConfiguration.getInstance().getJwtPrivateKey())
-				.compact();
+	static String getSignedIssuingJWT(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss, SignatureAlgorithm sigAlg, PrivateKey privKey) {
+		return buildJwt(null, sigAlg, privKey, getJwtClaims(credentialList, iss));
 	}
 
-	private static String getUnsignedIssuingJWT(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss) {
-		String header = encodeBase64("{\"typ\":\"JWT\",\"alg\":\"none\"}");
+	static String getUnsignedIssuingJWT(HashMap<CredentialIdentifier, HashMap<String, String>> credentialList, String iss) {
 		String claims = encodeBase64(getJwtClaims(credentialList, iss));
-		return header + "." + claims + ".";
+		return UNSIGNED_HEADER + "." + claims + ".";
 	}
 
 	/**
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands log records to another handler on a background thread. The records are kept in a bounded ring
+ * buffer; if the writer cannot keep up, new records are dropped (and counted) instead of making the logging
+ * thread wait.
+ */
+class AsyncLogHandler extends Handler {
+	private final Handler target;
+	private final ArrayBlockingQueue<LogRecord> queue;
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+
+	AsyncLogHandler(Handler target, int capacity) {
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+
+		writer = new Thread(this::write, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record))
+			return;
+
+		// The formatter runs on the writer thread, so remember the name of the thread that logged this now
+		if (!queue.offer(new Record(record, Thread.currentThread().getName())))
+			dropped.increment();
+	}
+
+	/**
+	 * A copy of a log record that also contains the name of the thread that logged it
+	 */
+	static class Record extends LogRecord {
+		final String threadName;
+
+		Record(LogRecord record, String threadName) {
+			super(record.getLevel(), record.getMessage());
+			setLoggerName(record.getLoggerName());
+			setMillis(record.getMillis());
+			setSequenceNumber(record.getSequenceNumber());
+			setParameters(record.getParameters());
+			setResourceBundle(record.getResourceBundle());
+			setResourceBundleName(record.getResourceBundleName());
+			setThreadID(record.getThreadID());
+			setThrown(record.getThrown());
+			this.threadName = threadName;
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				target.publish(queue.take());
+				if (queue.isEmpty())
+					target.flush();
+			}
+		} catch (InterruptedException e) {
+			// close() was called
+		}
+	}
+
+	/**
+	 * @return the amount of records that were dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void flush() {
+		target.flush();
+	}
+
+	@Override
+	public void close() {
+		writer.interrupt();
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		LogRecord record;
+		while ((record = queue.poll()) != null)
+			target.publish(record);
+		target.close();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending requests to a server that keeps failing. After a number of consecutive failures the circuit
+ * opens, and requests are refused immediately. Once the open time has passed, a single request is let
+ * through; if it succeeds the circuit closes again, otherwise it stays open for another period.
+ */
+class CircuitBreaker {
+	enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private static final Metrics.Counter transitions = Metrics.getInstance().counter("mno_api_circuit_transitions_total",
+			"Amount of times the circuit breaker of an API server endpoint changed state", "type", "state");
+	private static final Metrics.Counter rejections = Metrics.getInstance().counter("mno_api_circuit_rejected_total",
+			"Requests to the API server refused because the circuit breaker was open", "type");
+
+	private final String name;
+	private final IntSupplier threshold;
+	private final LongSupplier openNanos;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+
+	/**
+	 * @param name Name of the protected endpoint, used in the metrics
+	 * @param threshold Amount of consecutive failures after which the circuit opens, or 0 to never open
+	 * @param openTime Time the circuit stays open before a request is let through again
+	 */
+	CircuitBreaker(String name, int threshold, long openTime, TimeUnit unit) {
+		this(name, () -> threshold, () -> unit.toNanos(openTime));
+	}
+
+	/**
+	 * Circuit breaker whose settings are read again on each request, so that it follows configuration reloads
+	 * @param name Name of the protected endpoint, used in the metrics
+	 * @param threshold Supplies the amount of consecutive failures after which the circuit opens, or 0
+	 * @param openNanos Supplies the time (in nanoseconds) the circuit stays open
+	 */
+	CircuitBreaker(String name, IntSupplier threshold, LongSupplier openNanos) {
+		this.name = name;
+		this.threshold = threshold;
+		this.openNanos = openNanos;
+	}
+
+	/**
+	 * @return true if a request may be sent now
+	 */
+	synchronized boolean allowRequest() {
+		if (state == State.CLOSED)
+			return true;
+
+		if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos.getAsLong()) {
+			transition(State.HALF_OPEN);
+			return true;
+		}
+
+		rejections.inc(name);
+		return false;
+	}
+
+	synchronized void onSuccess() {
+		failures = 0;
+		if (state != State.CLOSED)
+			transition(State.CLOSED);
+	}
+
+	synchronized void onFailure() {
+		failures++;
+		int threshold = this.threshold.getAsInt();
+		if (threshold > 0 && (state == State.HALF_OPEN || failures >= threshold)) {
+			openedAt = System.nanoTime();
+			if (state != State.OPEN)
+				transition(State.OPEN);
+		}
+	}
+
+	/**
+	 * @return the amount of seconds until the next request will be let through
+	 */
+	synchronized long getRetryAfter() {
+		long remaining = openNanos.getAsLong() - (System.nanoTime() - openedAt);
+		return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	private void transition(State state) {
+		this.state = state;
+		transitions.inc(name, state.name());
+	}
+}
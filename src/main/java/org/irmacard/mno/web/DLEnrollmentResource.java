@@ -5,15 +5,20 @@ import org.irmacard.credentials.info.InfoException;
 import org.irmacard.mno.common.DriverDemographicInfo;
 import org.irmacard.mno.common.EDLDataMessage;
 import org.irmacard.mno.common.EnrollmentStartMessage;
-import org.irmacard.mno.common.PassportVerificationResultMessage;
+import org.jmrtd.lds.icao.DG15File;
 import org.jmrtd.lds.icao.MRZInfo;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.HashMap;
+import java.util.Map;
 
 @Path("v2/dl")
 public class DLEnrollmentResource extends GenericEnrollmentResource<EDLDataMessage> {
@@ -30,9 +35,31 @@ public class DLEnrollmentResource extends GenericEnrollmentResource<EDLDataMessa
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
-	public PassportVerificationResultMessage verifyDocument(EDLDataMessage documentData)
-			throws InfoException {
-		return super.verifyDocument(documentData);
+	public void verifyDocument(EDLDataMessage documentData, @Suspended AsyncResponse asyncResponse) {
+		super.verifyDocument(documentData, asyncResponse);
+	}
+
+	/**
+	 * Active authentication uses the key in the "DG15" file of the message, and the attributes come from DG1, so
+	 * these must be hashed. Driving licences number their data groups after ISO 18013 rather than ICAO 9303, in
+	 * which the active authentication key is DG13, so that is where the SOD holds the hash of that file.
+	 */
+	@Override
+	protected DocumentVerifier.Document getVerifiableDocument(EDLDataMessage msg) {
+		if (msg.getSodFile() == null || msg.getDg1File() == null || msg.getDg15File() == null)
+			return null;
+
+		PublicKey aaPublicKey;
+		try {
+			aaPublicKey = new DG15File(new ByteArrayInputStream(msg.getDg15File())).getPublicKey();
+		} catch (IOException|RuntimeException e) {
+			return null; // Let DocumentDataMessage.verify() report the error
+		}
+
+		Map<Integer, byte[]> dataGroups = new HashMap<>();
+		dataGroups.put(1, msg.getDg1File());
+		dataGroups.put(13, msg.getDg15File());
+		return new DocumentVerifier.Document(msg.getSodFile(), dataGroups, aaPublicKey, msg.getResponse());
 	}
 
 	@Override
@@ -42,27 +69,20 @@ public class DLEnrollmentResource extends GenericEnrollmentResource<EDLDataMessa
 		EDLDataMessage data = session.getEDLDataMessage();
 		DriverDemographicInfo driver = data.getDriverDemographicInfo();
 
-		SimpleDateFormat eDLDateFormat = new SimpleDateFormat("ddMMyyyy");
-		SimpleDateFormat hrDateFormat = new SimpleDateFormat("MMM d, y"); // Matches Android's default date format
-		Date dob;
-		Date expiry;
+		LocalDate dob;
+		LocalDate expiry;
 
 		try {
-			dob = eDLDateFormat.parse(driver.getDob());
-			expiry = eDLDateFormat.parse(driver.getDoe());
-		}  catch (ParseException e) {
-			e.printStackTrace();
+			dob = DocumentDates.parseEdlDate(driver.getDob());
+			expiry = DocumentDates.parseEdlDate(driver.getDoe());
+		}  catch (DateTimeException e) {
 			throw new InfoException("Failed to parse dates", e);
 		}
 
-		int[] lowAges = {12,16,18,21};
-		credentials.put(new CredentialIdentifier(SCHEME_MANAGER, ISSUER, "ageLower"), ageAttributes(lowAges, dob));
-
-		int[] highAges = {50, 60, 65, 75};
-		credentials.put(new CredentialIdentifier(SCHEME_MANAGER, ISSUER, "ageHigher"), ageAttributes(highAges, dob));
+		credentials.putAll(ageCredentials(dob));
 
 		HashMap<String,String> nameAttributes = new HashMap<>();
-		String[] nameParts = splitFamilyName(driver.getFamilyName());
+		String[] nameParts = splitFamilyName(driver.getFamilyName(), driver.getCountry());
 		String firstnames = toTitleCase(driver.getGivenNames());
 		// The first of the first names is not always the person's usual name ("roepnaam"). In fact, the person's
 		// usual name need not even be in his list of first names at all. But given only the MRZ, there is no way of
@@ -78,7 +98,7 @@ public class DLEnrollmentResource extends GenericEnrollmentResource<EDLDataMessa
 
 		HashMap<String, String> idDocumentAttributes = new HashMap<String, String>();
 		idDocumentAttributes.put("number", data.getDocumentNr());
-		idDocumentAttributes.put("expires", hrDateFormat.format(expiry));
+		idDocumentAttributes.put("expires", DocumentDates.format(expiry));
 		idDocumentAttributes.put("nationality", driver.getCountry());
 		idDocumentAttributes.put("type", "Electronic Driving License");
 		credentials.put(new CredentialIdentifier(SCHEME_MANAGER, ISSUER, "idDocument"), idDocumentAttributes);
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.irmacard.api.common.AttributeDisjunctionList;
+
+import java.security.PrivateKey;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A disclosure request that is always the same except for its "iat" claim. The claims are serialized once,
+ * after which only the timestamp is spliced in. In addition a small pool of JWTs is signed in advance by a
+ * background thread, so that requests can usually take a signed JWT from the pool instead of signing one
+ * themselves. JWTs in the pool are discarded when they get older than half the configured maximum age
+ * (see {@link MNOConfiguration#getDisclosureJwtMaxAge()}), or when the key or algorithm changes.
+ */
+class DisclosureRequestTemplate {
+	private static final ScheduledExecutorService refiller = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "disclosure-jwt-pool");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Metrics.Counter takes = Metrics.getInstance().counter("mno_disclosure_jwt_pool_total",
+			"Disclosure JWTs taken from the pool (hit) or signed on the request path (miss)", "result");
+
+	/** Placeholder for the iat claim while serializing; chosen so that it cannot occur elsewhere in the claims */
+	private static final long IAT_PLACEHOLDER = 4611686018427387903L;
+
+	private final String keyId;
+	private final String claimsPrefix;
+	private final String claimsSuffix;
+
+	private final ConcurrentLinkedDeque<Entry> pool = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger poolSize = new AtomicInteger();
+	private final AtomicBoolean refilling = new AtomicBoolean();
+
+	// The key with which the JWTs in the pool are signed, set by the last call to take()
+	private volatile Signer signer;
+
+	private static class Signer {
+		final SignatureAlgorithm algorithm;
+		final PrivateKey key;
+
+		Signer(SignatureAlgorithm algorithm, PrivateKey key) {
+			this.algorithm = algorithm;
+			this.key = key;
+		}
+	}
+
+	private static class Entry {
+		final Signer signer;
+		final long iat;
+		final String jwt;
+
+		Entry(Signer signer, long iat, String jwt) {
+			this.signer = signer;
+			this.iat = iat;
+			this.jwt = jwt;
+		}
+	}
+
+	DisclosureRequestTemplate(AttributeDisjunctionList list, String keyId, String iss) {
+		this.keyId = keyId;
+
+		String claims = ApiClient.getDisclosureJwtClaims(list, iss, IAT_PLACEHOLDER);
+		String placeholder = Long.toString(IAT_PLACEHOLDER);
+		int index = claims.indexOf(placeholder);
+		if (index < 0 || claims.indexOf(placeholder, index + 1) >= 0)
+			throw new IllegalStateException("Could not locate iat claim in disclosure request");
+		claimsPrefix = claims.substring(0, index);
+		claimsSuffix = claims.substring(index + placeholder.length());
+
+		refiller.scheduleWithFixedDelay(this::refill, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the claims of the request, issued at the specified time (in seconds since the epoch)
+	 */
+	String getClaims(long iat) {
+		return claimsPrefix + iat + claimsSuffix;
+	}
+
+	/**
+	 * Get a JWT of the request signed with the specified key, preferably one from the pool
+	 */
+	String take(SignatureAlgorithm algorithm, PrivateKey key) {
+		Signer current = signer;
+		if (current == null || current.algorithm != algorithm || current.key != key) {
+			current = new Signer(algorithm, key);
+			signer = current;
+		}
+
+		long oldest = now() - getMaxPoolAge();
+		Entry entry;
+		while ((entry = pool.pollLast()) != null) {
+			poolSize.decrementAndGet();
+			if (entry.signer == current && entry.iat >= oldest)
+				break;
+		}
+
+		if (poolSize.get() < MNOConfiguration.getInstance().getDisclosureJwtPoolSize())
+			refiller.execute(this::refill);
+
+		if (entry != null) {
+			takes.inc("hit");
+			return entry.jwt;
+		}
+		takes.inc("miss");
+		return sign(current, now());
+	}
+
+	/**
+	 * Drop JWTs that are too old or signed with a previous key, and top up the pool
+	 */
+	private void refill() {
+		if (!refilling.compareAndSet(false, true))
+			return;
+
+		try {
+			Signer current = signer;
+			long oldest = now() - getMaxPoolAge();
+			for (Entry entry : pool) {
+				// take() may have removed the entry in the meantime
+				if ((entry.signer != current || entry.iat < oldest) && pool.removeFirstOccurrence(entry))
+					poolSize.decrementAndGet();
+			}
+
+			if (current == null)
+				return;
+			int size = MNOConfiguration.getInstance().getDisclosureJwtPoolSize();
+			while (poolSize.get() < size && signer == current) {
+				long iat = now();
+				pool.addLast(new Entry(current, iat, sign(current, iat)));
+				poolSize.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			// Signing failed; requests will sign (and fail) themselves, reporting the error
+		} finally {
+			refilling.set(false);
+		}
+	}
+
+	private String sign(Signer signer, long iat) {
+		return ApiClient.buildJwt(keyId, signer.algorithm, signer.key, getClaims(iat));
+	}
+
+	int getPoolSize() {
+		return poolSize.get();
+	}
+
+	private static long getMaxPoolAge() {
+		return MNOConfiguration.getInstance().getDisclosureJwtMaxAge() / 2;
+	}
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parses the dates as they occur in identity documents ("yyMMdd" in the MRZ, "ddMMyyyy" in driving licences),
+ * and formats them for use in attributes. The fixed-width numeric formats are parsed directly from their digits;
+ * only the EDL format falls back to a {@link DateTimeFormatter}, to produce a proper error message for malformed
+ * input.
+ */
+public class DocumentDates {
+	/** Dates in an electronic driving licence */
+	public static final DateTimeFormatter EDL = DateTimeFormatter.ofPattern("ddMMyyyy");
+	/** Dates in attributes; matches Android's default date format */
+	public static final DateTimeFormatter HUMAN_READABLE = DateTimeFormatter.ofPattern("MMM d, y");
+
+	private DocumentDates() {}
+
+	/**
+	 * Parse a date of birth from the MRZ. As the MRZ only contains two digits of the year, the date is taken
+	 * to be the latest one that is not in the future.
+	 */
+	public static LocalDate parseMrzDateOfBirth(String date) throws DateTimeException {
+		return parseMrzDateOfBirth(date, LocalDate.now());
+	}
+
+	static LocalDate parseMrzDateOfBirth(String date, LocalDate today) throws DateTimeException {
+		checkDigits(date, 6);
+		int yy = digits(date, 0, 2);
+		int year = today.getYear() - Math.floorMod(today.getYear() - yy, 100);
+
+		LocalDate dob = of(date, year, digits(date, 2, 4), digits(date, 4, 6));
+		if (dob.isAfter(today))
+			dob = of(date, year - 100, dob.getMonthValue(), dob.getDayOfMonth());
+		return dob;
+	}
+
+	/**
+	 * Parse a date of expiry from the MRZ. As the MRZ only contains two digits of the year, the year is taken
+	 * to be within 80 years before and 20 years after the current one (as {@link java.text.SimpleDateFormat}
+	 * does).
+	 */
+	public static LocalDate parseMrzDateOfExpiry(String date) throws DateTimeException {
+		return parseMrzDateOfExpiry(date, LocalDate.now());
+	}
+
+	static LocalDate parseMrzDateOfExpiry(String date, LocalDate today) throws DateTimeException {
+		checkDigits(date, 6);
+		int base = today.getYear() - 80;
+		int year = base + Math.floorMod(digits(date, 0, 2) - base, 100);
+		return of(date, year, digits(date, 2, 4), digits(date, 4, 6));
+	}
+
+	/**
+	 * Parse a date from an electronic driving licence
+	 */
+	public static LocalDate parseEdlDate(String date) throws DateTimeException {
+		if (date == null || !isDigits(date, 8))
+			return LocalDate.parse(date == null ? "" : date, EDL);
+
+		return of(date, digits(date, 4, 8), digits(date, 2, 4), digits(date, 0, 2));
+	}
+
+	public static String format(LocalDate date) {
+		return HUMAN_READABLE.format(date);
+	}
+
+	private static LocalDate of(String date, int year, int month, int day) throws DateTimeParseException {
+		try {
+			return LocalDate.of(year, month, day);
+		} catch (DateTimeException e) {
+			throw new DateTimeParseException("Invalid date " + date, date, 0, e);
+		}
+	}
+
+	private static void checkDigits(String date, int length) throws DateTimeParseException {
+		if (date == null || !isDigits(date, length))
+			throw new DateTimeParseException("Expected " + length + " digits", date == null ? "" : date, 0);
+	}
+
+	private static boolean isDigits(String date, int length) {
+		if (date.length() != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			char c = date.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	private static int digits(String date, int from, int to) {
+		int value = 0;
+		for (int i = from; i < to; i++)
+			value = value * 10 + (date.charAt(i) - '0');
+		return value;
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.common.PassportVerificationResult;
+import org.jmrtd.lds.SODFile;
+
+import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies document data in the same steps as DocumentDataMessage.verify() (data group hashes, the signature of
+ * the SOD by the document signer, the document signer certificate against the CSCA certificates, and active
+ * authentication), except that the outcome of the certificate check is cached by fingerprint of the document
+ * signer certificate. As there are only a few dozen document signers, the per-document work is then reduced
+ * to the hashes, the SOD signature and active authentication.
+ *
+ * A certificate stays cached until it or the CSCA certificate that signed it expires, or at most
+ * document_signer_cache_time seconds; since this server has no revocation lists, the latter bounds how long a
+ * removed CSCA certificate is still trusted. Only certificates that were signed by one of the configured CSCA
+ * certificates are cached, so clients cannot grow the cache by sending arbitrary certificates.
+ */
+class DocumentVerifier {
+	private static final Metrics.Counter lookups = Metrics.getInstance().counter("mno_document_signer_cache_total",
+			"Document signer certificates found in the cache (hit) or checked against the CSCA certificates (miss)",
+			"result");
+
+	private static volatile DocumentVerifier instance;
+
+	private final List<X509Certificate> cscaCertificates;
+	private final long maxAge;
+	private final ConcurrentHashMap<ByteBuffer, Long> trusted = new ConcurrentHashMap<>();
+	private MNOConfiguration loadedFrom;
+
+	/**
+	 * The parts of an enrollment message that are verified
+	 */
+	static class Document {
+		final SODFile sod;
+		final Map<Integer, byte[]> dataGroups;
+		final PublicKey aaPublicKey;
+		final byte[] aaResponse;
+
+		/**
+		 * @param sod The document security object
+		 * @param dataGroups The encoded data groups whose hashes must occur in the SOD, by number
+		 * @param aaPublicKey The active authentication key from the (hashed) data groups
+		 * @param aaResponse The response of the document to the active authentication nonce
+		 */
+		Document(SODFile sod, Map<Integer, byte[]> dataGroups, PublicKey aaPublicKey, byte[] aaResponse) {
+			this.sod = sod;
+			this.dataGroups = dataGroups;
+			this.aaPublicKey = aaPublicKey;
+			this.aaResponse = aaResponse;
+		}
+	}
+
+	/**
+	 * @param cscaCertificates The trusted CSCA certificates
+	 * @param maxAge Maximum amount of milliseconds that a document signer certificate is cached
+	 */
+	DocumentVerifier(List<X509Certificate> cscaCertificates, long maxAge) {
+		this.cscaCertificates = cscaCertificates;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @return the verifier for the CSCA certificates of the configuration, or null if it has none, in which case
+	 * documents are verified by DocumentDataMessage.verify()
+	 */
+	static DocumentVerifier forConfiguration(MNOConfiguration conf) {
+		DocumentVerifier verifier = instance;
+		if (verifier == null || verifier.loadedFrom != conf) {
+			// The certificates may have changed, so start with an empty cache
+			verifier = new DocumentVerifier(conf.getCscaCertificates(),
+					TimeUnit.SECONDS.toMillis(conf.getDocumentSignerCacheTime()));
+			verifier.loadedFrom = conf;
+			instance = verifier;
+		}
+
+		return verifier.cscaCertificates.isEmpty() ? null : verifier;
+	}
+
+	/**
+	 * @return the result of the verification, or null if the document uses a kind of active authentication
+	 * that is not supported here
+	 */
+	PassportVerificationResult verify(Document document, byte[] nonce) {
+		return verify(document, nonce, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param now The time (in milliseconds since the epoch) at which the certificates must be valid
+	 */
+	PassportVerificationResult verify(Document document, byte[] nonce, long now) {
+		if (!(document.aaPublicKey instanceof RSAPublicKey))
+			return null;
+
+		try {
+			if (!verifyHashes(document.sod.getDataGroupHashes(), document.sod.getDigestAlgorithm(), document.dataGroups))
+				return PassportVerificationResult.HASHES_INVALID;
+
+			X509Certificate signer = document.sod.getDocSigningCertificate();
+			if (signer == null || !document.sod.checkDocSignature(signer) || !isTrusted(signer, now))
+				return PassportVerificationResult.SIGNATURE_INVALID;
+		} catch (GeneralSecurityException|RuntimeException e) {
+			return PassportVerificationResult.SIGNATURE_INVALID;
+		}
+
+		if (!verifyActiveAuthentication((RSAPublicKey) document.aaPublicKey, document.aaResponse, nonce))
+			return PassportVerificationResult.AA_FAILED;
+
+		return PassportVerificationResult.SUCCESS;
+	}
+
+	/**
+	 * @param hashes The hashes of the data groups as found in the SOD
+	 * @param algorithm The digest algorithm of the SOD, e.g. "SHA-256" or "SHA256"
+	 * @param dataGroups The encoded data groups to check
+	 * @return true if the SOD contains the correct hash of each of the data groups
+	 */
+	static boolean verifyHashes(Map<Integer, byte[]> hashes, String algorithm, Map<Integer, byte[]> dataGroups) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm.matches("SHA\\d+") ? "SHA-" + algorithm.substring(3) : algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+
+		for (Map.Entry<Integer, byte[]> dataGroup : dataGroups.entrySet()) {
+			byte[] hash = hashes.get(dataGroup.getKey());
+			if (hash == null || dataGroup.getValue() == null
+					|| !MessageDigest.isEqual(hash, digest.digest(dataGroup.getValue())))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the certificate was signed by one of the CSCA certificates, and both are valid at the
+	 * specified time (in milliseconds since the epoch)
+	 */
+	boolean isTrusted(X509Certificate signer, long now) throws GeneralSecurityException {
+		ByteBuffer fingerprint = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(signer.getEncoded()));
+		Long expires = trusted.get(fingerprint);
+		if (expires != null) {
+			if (now < expires) {
+				lookups.inc("hit");
+				return true;
+			}
+			trusted.remove(fingerprint, expires);
+		}
+
+		lookups.inc("miss");
+		for (X509Certificate csca : cscaCertificates) {
+			if (!csca.getSubjectX500Principal().equals(signer.getIssuerX500Principal()))
+				continue;
+			try {
+				signer.verify(csca.getPublicKey());
+				signer.checkValidity(new Date(now));
+				csca.checkValidity(new Date(now));
+			} catch (GeneralSecurityException e) {
+				continue; // Perhaps another CSCA certificate with the same name, e.g. after a key rollover
+			}
+
+			long notAfter = Math.min(signer.getNotAfter().getTime(), csca.getNotAfter().getTime());
+			trusted.put(fingerprint, Math.min(notAfter, now + maxAge));
+			return true;
+		}
+
+		return false;
+	}
+
+	int getCacheSize() {
+		return trusted.size();
+	}
+
+	/**
+	 * Check the response of the document to the nonce, which is an ISO 9796-2 (scheme 1) signature with partial
+	 * message recovery: the nonce is the nonrecoverable part, and the document chose the recoverable part.
+	 */
+	static boolean verifyActiveAuthentication(RSAPublicKey key, byte[] response, byte[] nonce) {
+		if (response == null || nonce == null)
+			return false;
+
+		byte[] plaintext;
+		try {
+			Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key);
+			plaintext = cipher.doFinal(response);
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+
+		// The plaintext is header || recoverable part || hash || trailer
+		int length = plaintext.length;
+		if (length < 2 || (plaintext[0] & 0xC0) != 0x40 || (plaintext[0] & 0x20) == 0)
+			return false;
+
+		String algorithm;
+		int trailerLength;
+		if ((plaintext[length - 1] & 0xFF) == 0xBC) {
+			algorithm = "SHA-1";
+			trailerLength = 1;
+		} else if ((plaintext[length - 1] & 0xFF) == 0xCC) {
+			algorithm = getTrailerAlgorithm(plaintext[length - 2] & 0xFF);
+			trailerLength = 2;
+		} else {
+			return false;
+		}
+		if (algorithm == null)
+			return false;
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+
+		int hashOffset = length - trailerLength - digest.getDigestLength();
+		if (hashOffset < 1)
+			return false;
+
+		digest.update(plaintext, 1, hashOffset - 1);
+		digest.update(nonce);
+		return MessageDigest.isEqual(digest.digest(),
+				Arrays.copyOfRange(plaintext, hashOffset, length - trailerLength));
+	}
+
+	/**
+	 * @return the hash function identified in a two-byte ISO 9796-2 trailer, or null if it is unknown
+	 */
+	private static String getTrailerAlgorithm(int id) {
+		switch (id) {
+			case 0x33: return "SHA-1";
+			case 0x34: return "SHA-256";
+			case 0x35: return "SHA-512";
+			case 0x36: return "SHA-384";
+			case 0x38: return "SHA-224";
+			default: return null;
+		}
+	}
+}
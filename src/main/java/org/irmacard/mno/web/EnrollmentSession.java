@@ -47,21 +47,42 @@ import java.util.Map;
 
 public class EnrollmentSession {
     public enum State {
-        STARTED, PASSPORT_VERIFIED, ISSUING
+        STARTED, PASSPORT_VERIFIED, ISSUING,
+        /** The document data was received and is being verified; appended because the ordinal is stored */
+        VERIFYING
     }
 
     private String sessionToken;
     private byte[] aaNonce;
-    private State state;
+    private volatile State state;
     private DocumentDataMessage documentData;
     private HashMap<CredentialIdentifier, HashMap<String, String>> credentialList;
     private Map<CredentialIdentifier, Attributes> attributesList;
     private Map<CredentialIdentifier, BigInteger> nonceList;
 
+    private final long created;
+    private volatile long lastAccessed;
+
     public EnrollmentSession(String sessionToken, byte[] nonce) {
         this.sessionToken = sessionToken;
         this.aaNonce = nonce;
         this.state = State.STARTED;
+        this.created = System.currentTimeMillis();
+        this.lastAccessed = created;
+
+        attributesList = new HashMap<CredentialIdentifier, Attributes>();
+        nonceList = new HashMap<CredentialIdentifier, BigInteger>();
+    }
+
+    /**
+     * Recreate a session that was stored earlier, see {@link EnrollmentSessionCodec}.
+     */
+    EnrollmentSession(String sessionToken, byte[] nonce, State state, long created, long lastAccessed) {
+        this.sessionToken = sessionToken;
+        this.aaNonce = nonce;
+        this.state = state;
+        this.created = created;
+        this.lastAccessed = lastAccessed;
 
         attributesList = new HashMap<CredentialIdentifier, Attributes>();
         nonceList = new HashMap<CredentialIdentifier, BigInteger>();
@@ -75,10 +96,21 @@ public class EnrollmentSession {
         return state;
     }
 
-    public void setState(State state) {
+    public synchronized void setState(State state) {
         this.state = state;
     }
 
+    /**
+     * Change the state of this instance, if it currently is the expected state.
+     * @return true if the state was changed
+     */
+    synchronized boolean compareAndSetState(State expected, State state) {
+        if (this.state != expected)
+            return false;
+        this.state = state;
+        return true;
+    }
+
     public EnrollmentStartMessage getStartMessage() {
         return new EnrollmentStartMessage(sessionToken, aaNonce);
     }
@@ -134,4 +166,22 @@ public class EnrollmentSession {
     public void setAANonce(byte[] aaNonce) {
         this.aaNonce = aaNonce;
     }
+
+    /**
+     * @return the time (in milliseconds since the epoch) at which this session was created
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the time (in milliseconds since the epoch) at which this session was last looked up
+     */
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    void touch(long now) {
+        lastAccessed = now;
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.credentials.info.CredentialIdentifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary (de)serialization of the persistent part of an {@link EnrollmentSession}: its token,
+ * timestamps, active authentication nonce, state and credential list. The document data and the raw
+ * attributes are only needed during a single request, so they are not included.
+ */
+public class EnrollmentSessionCodec {
+	private static final byte VERSION = 1;
+
+	private EnrollmentSessionCodec() {}
+
+	public static byte[] encode(EnrollmentSession session) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeUTF(session.getSessionToken());
+			out.writeLong(session.getCreated());
+			out.writeLong(session.getLastAccessed());
+			out.writeByte(session.getState().ordinal());
+
+			byte[] nonce = session.getAANonce();
+			out.writeShort(nonce == null ? -1 : nonce.length);
+			if (nonce != null)
+				out.write(nonce);
+
+			HashMap<CredentialIdentifier, HashMap<String, String>> credentials = session.getCredentialList();
+			out.writeShort(credentials == null ? -1 : credentials.size());
+			if (credentials != null) {
+				for (Map.Entry<CredentialIdentifier, HashMap<String, String>> credential : credentials.entrySet()) {
+					out.writeUTF(credential.getKey().toString());
+					out.writeShort(credential.getValue().size());
+					for (Map.Entry<String, String> attribute : credential.getValue().entrySet()) {
+						out.writeUTF(attribute.getKey());
+						writeNullableUTF(out, attribute.getValue());
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Cannot happen when writing to a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param offset Position of an encoded session in the buffer
+	 * @return the position of the byte holding the state of that session, so that it can be changed in place
+	 */
+	static int getStateOffset(ByteBuffer buffer, int offset) {
+		// Version, token (prefixed by its length), created and last accessed time
+		return offset + 1 + 2 + (buffer.getShort(offset + 1) & 0xffff) + 8 + 8;
+	}
+
+	public static EnrollmentSession decode(byte[] data, int offset, int length) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		if (in.readByte() != VERSION)
+			throw new IOException("Unsupported session encoding version");
+
+		String token = in.readUTF();
+		long created = in.readLong();
+		long lastAccessed = in.readLong();
+		EnrollmentSession.State state = EnrollmentSession.State.values()[in.readByte()];
+
+		byte[] nonce = null;
+		int nonceLength = in.readShort();
+		if (nonceLength >= 0) {
+			nonce = new byte[nonceLength];
+			in.readFully(nonce);
+		}
+
+		EnrollmentSession session = new EnrollmentSession(token, nonce, state, created, lastAccessed);
+
+		int credentialCount = in.readShort();
+		if (credentialCount >= 0) {
+			HashMap<CredentialIdentifier, HashMap<String, String>> credentials = new HashMap<>(credentialCount * 2);
+			for (int i = 0; i < credentialCount; i++) {
+				CredentialIdentifier identifier = new CredentialIdentifier(in.readUTF());
+				int attributeCount = in.readShort();
+				HashMap<String, String> attributes = new HashMap<>(attributeCount * 2);
+				for (int j = 0; j < attributeCount; j++)
+					attributes.put(in.readUTF(), readNullableUTF(in));
+				credentials.put(identifier, attributes);
+			}
+			session.setCredentialList(credentials);
+		}
+
+		return session;
+	}
+
+	private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readNullableUTF(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.io.IOException;
+
+/**
+ * Creates the {@link EnrollmentSessions} implementation selected in the configuration.
+ */
+final class EnrollmentSessionStores {
+	static final EnrollmentSessions instance = create(MNOConfiguration.getInstance());
+
+	private EnrollmentSessionStores() {}
+
+	private static EnrollmentSessions create(MNOConfiguration conf) {
+		EnrollmentSessions sessions = open(conf);
+
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("mno_sessions", "Amount of live enrollment sessions", sessions::size);
+		if (sessions instanceof InMemoryEnrollmentSessions) {
+			InMemoryEnrollmentSessions memory = (InMemoryEnrollmentSessions) sessions;
+			metrics.counter("mno_sessions_idle_expired_total", "Amount of sessions that expired because they were unused",
+					memory::getIdleExpirations);
+			metrics.counter("mno_sessions_lifetime_expired_total", "Amount of sessions that exceeded their lifetime",
+					memory::getLifetimeExpirations);
+			metrics.counter("mno_sessions_evicted_total", "Amount of sessions evicted because the store was full",
+					memory::getCapacityEvictions);
+		}
+
+		return sessions;
+	}
+
+	private static EnrollmentSessions open(MNOConfiguration conf) {
+		switch (conf.getSessionStore()) {
+			case "memory":
+				return new InMemoryEnrollmentSessions(conf);
+			case "file":
+				try {
+					return new MappedFileEnrollmentSessions(conf);
+				} catch (IOException e) {
+					throw new IllegalStateException("Could not open session store file " + conf.getSessionStoreFile(), e);
+				}
+			default:
+				throw new IllegalStateException("Unknown session store: " + conf.getSessionStore());
+		}
+	}
+}
@@ -32,27 +32,52 @@
 
 package org.irmacard.mno.web;
 
-import java.util.HashMap;
+/**
+ * Storage for the running enrollment sessions. Which implementation is used is determined by the
+ * session_store option of the {@link MNOConfiguration}: "memory" (the default) keeps the sessions in
+ * this JVM, "file" keeps them in a memory-mapped file that can be shared by several server processes
+ * on the same host.
+ */
+public interface EnrollmentSessions {
+    /**
+     * @return the session store configured for this server
+     */
+    static EnrollmentSessions getSessions() {
+        return EnrollmentSessionStores.instance;
+    }
 
-public class EnrollmentSessions {
-    private static EnrollmentSessions es = new EnrollmentSessions();
-    private HashMap<String, EnrollmentSession> sessions = new HashMap<String, EnrollmentSession>();
+    void addSession(EnrollmentSession session);
 
-    public static EnrollmentSessions getSessions() {
-        return es;
-    }
+    /**
+     * Get the session belonging to the specified token, or null if it does not exist or has expired.
+     * Depending on the implementation, the returned session may be a copy of the stored session; use
+     * {@link #update(EnrollmentSession)} to store any modifications.
+     */
+    EnrollmentSession getSession(String sessionToken);
 
-    private EnrollmentSessions() {}
+    /**
+     * Check whether a session exists and has not expired, without reading it or counting this as a use of the
+     * session (unlike {@link #getSession(String)}, it does not postpone the idle timeout).
+     */
+    boolean contains(String sessionToken);
 
-    public void addSession(EnrollmentSession session) {
-        sessions.put(session.getSessionToken(), session);
-    }
+    /**
+     * Write back the state of a session that was modified after {@link #getSession(String)}.
+     */
+    void update(EnrollmentSession session);
 
-    public EnrollmentSession getSession(String sessionToken) {
-        return sessions.get(sessionToken);
-    }
+    /**
+     * Atomically change the state of the stored session, if it still is in the expected state, so that of several
+     * concurrent requests for the same session only one can move it on. On success the specified instance is
+     * changed as well.
+     * @return true if the state was changed, false if the session has expired or is in another state
+     */
+    boolean replaceState(EnrollmentSession session, EnrollmentSession.State expected, EnrollmentSession.State state);
 
-    public void remove(EnrollmentSession session) {
-        sessions.remove(session.getSessionToken());
-    }
+    void remove(EnrollmentSession session);
+
+    /**
+     * @return the number of sessions currently stored (possibly including expired ones that were not yet cleaned up)
+     */
+    int size();
 }
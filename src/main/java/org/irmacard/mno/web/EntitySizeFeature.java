@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.web.exceptions.EntityTooLargeException;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits the size of the request bodies of the enrollment resources, per endpoint (see
+ * {@link MNOConfiguration#getMaxEntitySize(String)}). Requests whose Content-Length exceeds the limit are
+ * refused before their body is read; otherwise the body is cut off as soon as it exceeds the limit.
+ */
+public class EntitySizeFeature implements DynamicFeature {
+	@Override
+	public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+		Path resourcePath = resourceInfo.getResourceClass().getAnnotation(Path.class);
+		Path methodPath = resourceInfo.getResourceMethod().getAnnotation(Path.class);
+		if (resourcePath == null || methodPath == null)
+			return;
+
+		context.register(new Interceptor(RequestMetricsFeature.join(resourcePath.value(), methodPath.value())));
+	}
+
+	private static class Interceptor implements ReaderInterceptor {
+		private final String path;
+
+		Interceptor(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+			// Looked up per request, so that changes to the configuration take effect
+			int limit = MNOConfiguration.getInstance().getMaxEntitySize(path);
+
+			String length = context.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH);
+			if (length != null) {
+				try {
+					if (Long.parseLong(length.trim()) > limit)
+						throw new EntityTooLargeException(limit);
+				} catch (NumberFormatException e) {
+					// Let the container deal with it; we still count the bytes below
+				}
+			}
+
+			context.setInputStream(new LimitedInputStream(context.getInputStream(), limit));
+			return context.proceed();
+		}
+	}
+
+	/**
+	 * Throws an {@link EntityTooLargeException} when more than the limit is read from the stream
+	 */
+	static class LimitedInputStream extends FilterInputStream {
+		private final int limit;
+		private long count;
+
+		LimitedInputStream(InputStream in, int limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count(read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		/**
+		 * @return the maximum amount of bytes that can be read from this stream
+		 */
+		int getLimit() {
+			return limit;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void count(long n) {
+			count += n;
+			if (count > limit)
+				throw new EntityTooLargeException(limit);
+		}
+	}
+}
@@ -32,35 +32,36 @@
 
 package org.irmacard.mno.web;
 
-import org.apache.commons.codec.binary.Base64;
 import org.irmacard.credentials.info.CredentialIdentifier;
 import org.irmacard.credentials.info.InfoException;
 import org.irmacard.mno.common.*;
 import org.irmacard.mno.web.exceptions.InputInvalidException;
+import org.irmacard.mno.web.exceptions.ServerBusyException;
 import org.irmacard.mno.web.exceptions.SessionUnknownException;
 
-import javax.inject.Inject;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.security.KeyManagementException;
-import java.security.SecureRandom;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 abstract public class GenericEnrollmentResource<DocData extends DocumentDataMessage> {
-    private SecureRandom rnd;
-
     protected EnrollmentSessions sessions = EnrollmentSessions.getSessions();
 
-    private static final int SESSION_TOKEN_LENGTH = 33;
-    private static final int AA_NONCE_LENGTH = 8;
+    @Context
+    private HttpHeaders headers;
 
     public static final String SCHEME_MANAGER = "irma-demo";
     public static final String ISSUER = "MijnOverheid";
 
-    @Inject
-    public GenericEnrollmentResource() {
-        rnd = new SecureRandom();
-    }
+    private static final Metrics.Counter verificationResults = Metrics.getInstance().counter(
+            "mno_verification_results_total", "Outcomes of document verifications", "result");
 
     public EnrollmentStartMessage start() {
         String sessionToken = generateSessionToken();
@@ -73,42 +74,112 @@ abstract public class GenericEnrollmentResource<DocData extends DocumentDataMess
     }
 
     /**
-     * Verify the document data, compute the resulting attributes, and store them in the session
+     * Verify the document data, compute the resulting attributes, and store them in the session.
+     * The verification runs on the {@link VerificationExecutor}, and the response is resumed once the
+     * API server has created the issuing session.
      */
-    public PassportVerificationResultMessage verifyDocument(DocData documentData)
-    throws InfoException {
-        EnrollmentSession session = getSession(documentData);
+    public void verifyDocument(final DocData documentData, AsyncResponse asyncResponse) {
+        final Span trace = Tracing.start("verify-document",
+                headers == null ? null : headers.getHeaderString(Tracing.HEADER));
 
-        // Verify state of session
-        if (session.getState() != EnrollmentSession.State.STARTED) {
-            throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+        final EnrollmentSession session;
+        try {
+            session = getSession(documentData);
+
+            // Verify state of session, and claim it, so that concurrent submissions for it are refused
+            if (!sessions.replaceState(session, EnrollmentSession.State.STARTED, EnrollmentSession.State.VERIFYING)) {
+                throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+            }
+        } catch (RuntimeException e) {
+            trace.tag("error", e).end();
+            asyncResponse.resume(e);
+            return;
         }
 
         session.setDocumentData(documentData);
 
+        CompletionStage<PassportVerificationResult> verification = VerificationExecutor.getInstance()
+                .submit(() -> verifyAndComputeCredentials(session, documentData, trace));
+        verification.whenComplete((result, ex) -> {
+            // The verification did not start, so allow the client to try again
+            if (ex instanceof ServerBusyException)
+                sessions.replaceState(session, EnrollmentSession.State.VERIFYING, EnrollmentSession.State.STARTED);
+        });
+
+        resume(asyncResponse, verification
+                .thenCompose(result -> createIssuingSession(session, result, trace))
+                .whenComplete((result, ex) -> trace.end()));
+    }
+
+    /**
+     * Check the document data and, if it is valid, compute the credentials to issue and store them in the session
+     */
+    private PassportVerificationResult verifyAndComputeCredentials(EnrollmentSession session, DocData documentData,
+                                                                   Span trace) {
         // Check the passport data
+        Span span = trace.child("verify");
         PassportVerificationResult result = verifyDocumentData(documentData, session.getStartMessage().getNonce());
-        PassportVerificationResultMessage msg = new PassportVerificationResultMessage(result);
+        span.tag("result", result).end();
+        verificationResults.inc(result.name());
 
         if (result != PassportVerificationResult.SUCCESS) {
             // Verification failed, remove session
             sessions.remove(session);
-            return msg;
+            return result;
         }
 
         session.setState(EnrollmentSession.State.PASSPORT_VERIFIED);
-        HashMap<CredentialIdentifier, HashMap<String, String>> credentialList = getCredentialList(session);
-        session.setCredentialList(credentialList);
+        span = trace.child("getCredentialList");
+        try {
+            session.setCredentialList(getCredentialList(session));
+        } catch (InfoException e) {
+            throw new CompletionException(e);
+        } finally {
+            span.end();
+        }
+        sessions.update(session);
+
+        return result;
+    }
+
+    private CompletionStage<PassportVerificationResultMessage> createIssuingSession(EnrollmentSession session,
+                                                                                    PassportVerificationResult result,
+                                                                                    Span trace) {
+        final PassportVerificationResultMessage msg = new PassportVerificationResultMessage(result);
+        if (result != PassportVerificationResult.SUCCESS)
+            return CompletableFuture.completedFuture(msg);
+
+        MNOConfiguration conf = MNOConfiguration.getInstance();
         try {
-            msg.setIssueQr(ApiClient.createIssuingSession(credentialList,
-                    MNOConfiguration.getInstance().getApiName(),
-                    MNOConfiguration.getInstance().getJwtAlgorithm(),
-                    MNOConfiguration.getInstance().getJwtPrivateKey()));
+            // The private key is only needed (and present) if issuing JWTs are signed
+            return ApiClient.createIssuingSessionAsync(session.getCredentialList(),
+                    conf.getApiName(),
+                    conf.getJwtAlgorithm(),
+                    conf.shouldSignJwt() ? conf.getJwtPrivateKey() : null,
+                    trace)
+                    .thenApply(issueQr -> {
+                        msg.setIssueQr(issueQr);
+                        return msg;
+                    });
         } catch (KeyManagementException e) {
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
+    }
 
-        return msg;
+    /**
+     * Resume the response with the result of the specified stage once it completes, or with its exception
+     * if it fails.
+     */
+    protected static <T> void resume(final AsyncResponse asyncResponse, CompletionStage<T> stage) {
+        stage.whenComplete((result, ex) -> {
+            if (ex instanceof CompletionException && ex.getCause() != null)
+                ex = ex.getCause();
+
+            if (ex != null)
+                asyncResponse.resume(ex);
+            else
+                asyncResponse.resume(result);
+        });
     }
 
     /**
@@ -138,26 +209,20 @@ abstract public class GenericEnrollmentResource<DocData extends DocumentDataMess
     }
 
     /**
-     * A random session token. Returns a base64 encoded string representing the
-     * session token. The characters '+' and '/' are removed from this
-     * representation.
+     * A random session token, consisting of a fixed number of URL-safe Base64 characters
+     * (see {@link TokenPool}).
      *
      * @return the random session token
      */
-    private String generateSessionToken() {
-        byte[] token = new byte[SESSION_TOKEN_LENGTH];
-        rnd.nextBytes(token);
-        String strtoken = Base64.encodeBase64String(token);
-        return strtoken.replace("+", "").replace("/", "");
+    String generateSessionToken() {
+        return TokenPool.sessionToken();
     }
 
     /**
      * A random nonce for the active authentication of the passport
      */
-    private byte[] generateAANonce() {
-        byte[] nonce = new byte[AA_NONCE_LENGTH];
-        rnd.nextBytes(nonce);
-        return nonce;
+    byte[] generateAANonce() {
+        return TokenPool.aaNonce();
     }
 
     abstract protected HashMap<CredentialIdentifier, HashMap<String, String>> getCredentialList(EnrollmentSession session)
@@ -171,31 +236,21 @@ abstract public class GenericEnrollmentResource<DocData extends DocumentDataMess
      * remainder of the name.
      */
     public String[] splitFamilyName(String name) {
-        name = name.toLowerCase();
-        String[] parts = {" ", name};
-
-        // Taken from https://nl.wikipedia.org/wiki/Tussenvoegsel
-        String[] prefixes = {"af", "aan", "bij", "de", "den", "der", "d'", "het", "'t", "in", "onder", "op", "over", "'s", "'t", "te", "ten", "ter", "tot", "uit", "uijt", "van", "vanden", "ver", "voor", "aan de", "aan den", "aan der", "aan het", "aan 't", "bij de", "bij den", "bij het", "bij 't", "boven d'", "de die", "de die le", "de l'", "de la", "de las", "de le", "de van der,", "in de", "in den", "in der", "in het", "in 't", "onder de", "onder den", "onder het", "onder 't", "over de", "over den", "over het", "over 't", "op de", "op den", "op der", "op gen", "op het", "op 't", "op ten", "van de", "van de l'", "van den", "van der", "van gen", "van het", "van la", "van 't", "van ter", "van van de", "uit de", "uit den", "uit het", "uit 't", "uit te de", "uit ten", "uijt de", "uijt den", "uijt het", "uijt 't", "uijt te de", "uijt ten", "voor de", "voor den", "voor in 't"};
-
-        // I'm too lazy to manually sort the list above on string size.
-        Arrays.sort(prefixes, new Comparator<String>() {
-            @Override
-            public int compare(String o1, String o2) {
-                if (o1.length() < o2.length()) return 1;
-                if (o1.length() > o2.length()) return -1;
-                return o1.compareTo(o2);
-            }
-        });
-
-        for (String prefix : prefixes) {
-            if (name.startsWith(prefix + " ")) {
-                parts[0] = prefix;
-                parts[1] = name.substring(prefix.length() + 1); // + 1 to skip the space between the prefix and the name
-                return parts;
-            }
-        }
+        return SurnamePrefixes.getDefault().split(name);
+    }
 
-        return parts;
+    /**
+     * Try to split the family name in into a prefix and a proper part, using the prefixes that are common
+     * in the specified country.
+     * @param name The name to split
+     * @param country The nationality of the holder (passports, identity cards) or the country that issued the
+     *                document (driving licences), as found in the document
+     * @return An array in which the first element is the prefix, or " " if none found, and the second is the
+     * remainder of the name.
+     * @see SurnamePrefixes#forCountry(String)
+     */
+    public String[] splitFamilyName(String name, String country) {
+        return SurnamePrefixes.forCountry(country).split(name);
     }
 
     public static String toTitleCase(String s) {
@@ -228,23 +283,36 @@ abstract public class GenericEnrollmentResource<DocData extends DocumentDataMess
         return s;
     }
 
-    public HashMap<String, String> ageAttributes(int[] ages, Date dob) {
-        HashMap<String, String> attrs = new HashMap<>();
+    /**
+     * @return The age credentials (as configured in age_attributes) for the given date of birth
+     */
+    public HashMap<CredentialIdentifier, HashMap<String, String>> ageCredentials(LocalDate dob) {
+        HashMap<CredentialIdentifier, HashMap<String, String>> credentials = new HashMap<>();
 
-        for (int age : ages) {
-            Calendar c = Calendar.getInstance();
-            c.add(Calendar.YEAR, -1 * age);
-            Date ageDate = c.getTime();
+        Map<String, AgeThresholds> thresholds = AgeThresholds.forConfiguration(MNOConfiguration.getInstance());
+        for (Map.Entry<String, AgeThresholds> entry : thresholds.entrySet())
+            credentials.put(new CredentialIdentifier(SCHEME_MANAGER, ISSUER, entry.getKey()),
+                    entry.getValue().evaluate(dob));
 
-            String attrValue;
-            attrValue = dob.before(ageDate) ? "yes" : "no";
-            attrs.put("over" + age, attrValue);
-        }
+        return credentials;
+    }
 
-        return attrs;
+    /**
+     * @return the parts of the document data that {@link DocumentVerifier} checks, or null if the document can
+     * only be verified as a whole by {@link DocumentDataMessage#verify(byte[])}
+     */
+    protected DocumentVerifier.Document getVerifiableDocument(DocData msg) {
+        return null;
     }
 
-    private PassportVerificationResult verifyDocumentData(DocumentDataMessage msg, byte[] nonce) {
+    private PassportVerificationResult verifyDocumentData(DocData msg, byte[] nonce) {
+        // A rejection by the DocumentVerifier is final; only documents that it cannot check fall through
+        DocumentVerifier verifier = DocumentVerifier.forConfiguration(MNOConfiguration.getInstance());
+        DocumentVerifier.Document document = verifier == null ? null : getVerifiableDocument(msg);
+        PassportVerificationResult result = document == null ? null : verifier.verify(document, nonce);
+        if (result != null)
+            return result;
+
         // TODO: query MNO DB
         return msg.verify(nonce);
     }
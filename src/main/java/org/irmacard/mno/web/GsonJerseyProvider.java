@@ -34,13 +34,22 @@
 package org.irmacard.mno.web;
 
 import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 import org.irmacard.api.common.exceptions.ApiError;
 import org.irmacard.api.common.exceptions.ApiException;
+import org.irmacard.mno.common.BasicClientMessage;
 import org.irmacard.mno.common.util.GsonUtil;
+import org.irmacard.mno.web.exceptions.InputInvalidException;
+import org.irmacard.mno.web.exceptions.SessionUnknownException;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyReader;
@@ -49,12 +58,24 @@ import javax.ws.rs.ext.Provider;
 import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Reads and writes JSON entities using the IRMA Gson instance. Incoming entities are parsed while they are read
+ * from the stream, using type adapters that are looked up once per type; client messages whose sessionToken is
+ * missing or unknown are refused before their fields are converted. Responses are serialized into a per-thread
+ * buffer that is reused across requests, so that their Content-Length is always known.
+ */
 @Provider
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
 public class GsonJerseyProvider implements MessageBodyWriter<Object>, MessageBodyReader<Object> {
-	private static final String UTF_8 = "UTF-8";
+	/** Response buffers larger than this (i.e. much larger than our usual responses) are not kept for the next request */
+	private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+	private static final ConcurrentHashMap<Type, TypeAdapter<Object>> adapters = new ConcurrentHashMap<>();
+	private static final ThreadLocal<Utf8Writer> writers = ThreadLocal.withInitial(() -> new Utf8Writer(16 * 1024));
 
 	@Override
 	public boolean isReadable(Class<?> type, Type genericType,
@@ -67,13 +88,55 @@ public class GsonJerseyProvider implements MessageBodyWriter<Object>, MessageBod
 						   Annotation[] annotations, MediaType mediaType,
 						   MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
 			throws IOException {
-		try (InputStreamReader streamReader = new InputStreamReader(entityStream, UTF_8)) {
-			return GsonUtil.getGson().fromJson(streamReader, genericType);
-		} catch (JsonParseException e) {
+		try {
+			if (BasicClientMessage.class.isAssignableFrom(type)) {
+				// Refuse messages for unknown sessions before parsing (and Base64-decoding) the document data. The
+				// scan for the sessionToken skips over the other values without decoding them, after which the
+				// stream is reset to parse the message. The bytes in between are buffered, but never more than the
+				// size limit of the entity.
+				InputStream markable = new BufferedInputStream(entityStream, 8 * 1024);
+				markable.mark(getMarkLimit(entityStream));
+				JsonReader scanner = new JsonReader(new InputStreamReader(markable, StandardCharsets.UTF_8));
+				scanner.setLenient(true);
+				if (isEmpty(scanner))
+					return null;
+				checkSession(scanner);
+				markable.reset();
+				entityStream = markable;
+			}
+
+			JsonReader reader = new JsonReader(new InputStreamReader(entityStream, StandardCharsets.UTF_8));
+			reader.setLenient(true);
+			if (isEmpty(reader))
+				return null;
+
+			Object result = getAdapter(genericType).read(reader);
+			if (reader.peek() != JsonToken.END_DOCUMENT)
+				throw new MalformedJsonException("Unexpected data after the JSON value");
+			return result;
+		} catch (JsonParseException|IllegalStateException|MalformedJsonException|EOFException e) {
 			throw new ApiException(ApiError.MALFORMED_INPUT, e.getMessage());
 		}
 	}
 
+	private static boolean isEmpty(JsonReader reader) throws IOException {
+		try {
+			reader.peek();
+			return false;
+		} catch (EOFException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return the amount of bytes that may have to be buffered to read the stream again from the start
+	 */
+	private static int getMarkLimit(InputStream entityStream) {
+		if (entityStream instanceof EntitySizeFeature.LimitedInputStream)
+			return ((EntitySizeFeature.LimitedInputStream) entityStream).getLimit();
+		return MNOConfiguration.getInstance().getMaxEntitySize(null);
+	}
+
 	@Override
 	public boolean isWriteable(Class<?> type, Type genericType,
 							   Annotation[] annotations, MediaType mediaType) {
@@ -83,6 +146,7 @@ public class GsonJerseyProvider implements MessageBodyWriter<Object>, MessageBod
 	@Override
 	public long getSize(Object object, Class<?> type, Type genericType,
 						Annotation[] annotations, MediaType mediaType) {
+		// Ignored since JAX-RS 2.0; we set the Content-Length in writeTo() instead
 		return -1;
 	}
 
@@ -92,8 +156,53 @@ public class GsonJerseyProvider implements MessageBodyWriter<Object>, MessageBod
 						MultivaluedMap<String, Object> httpHeaders,
 						OutputStream entityStream) throws IOException,
 			WebApplicationException {
-		try (OutputStreamWriter writer = new OutputStreamWriter(entityStream, UTF_8)) {
-			GsonUtil.getGson().toJson(object, genericType, writer);
+		Utf8Writer writer = writers.get();
+		try {
+			writer.reset();
+			// Let Gson create the JsonWriter, so that it is configured (null handling, HTML escaping) like Gson's own
+			GsonUtil.getGson().toJson(object, genericType == null ? object.getClass() : genericType, writer);
+
+			// The headers may be modified until the first byte of the entity is written
+			httpHeaders.putSingle(HttpHeaders.CONTENT_LENGTH, writer.size());
+			writer.writeTo(entityStream);
+		} finally {
+			writer.trim(MAX_RETAINED_BUFFER);
+		}
+	}
+
+	/**
+	 * Find the sessionToken field of the message, skipping over the values of the other fields without
+	 * decoding them, and check that the session exists.
+	 */
+	private static void checkSession(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT)
+			return; // Let the adapter produce the error
+
+		String sessionToken = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("sessionToken") && reader.peek() == JsonToken.STRING) {
+				sessionToken = reader.nextString();
+				break;
+			}
+			reader.skipValue();
+		}
+
+		if (sessionToken == null)
+			throw new InputInvalidException("Specify the sessionToken field");
+		// Only check for existence: the resource looks the session up itself, which counts as its use
+		if (!EnrollmentSessions.getSessions().contains(sessionToken))
+			throw new SessionUnknownException();
+	}
+
+	private static TypeAdapter<Object> getAdapter(Type type) {
+		TypeAdapter<Object> adapter = adapters.get(type);
+		if (adapter == null) {
+			@SuppressWarnings("unchecked")
+			TypeAdapter<Object> a = (TypeAdapter<Object>) GsonUtil.getGson().getAdapter(TypeToken.get(type));
+			adapter = a;
+			adapters.putIfAbsent(type, adapter);
 		}
+		return adapter;
 	}
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.web.exceptions.ServerBusyException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts passport photos (JPEG, or JPEG2000 if a JPEG2000 ImageIO plugin is on the classpath) to BMP,
+ * in-process using ImageIO. Conversions run on a bounded pool of worker threads (if too many are waiting,
+ * new ones are refused with a {@link ServerBusyException}), and their results are cached by the SHA-256 hash of the input, up to a configurable total size.
+ * As a small compressed image can declare huge dimensions, images whose width or height exceeds image_max_size
+ * are refused before they are decoded.
+ */
+public class ImageConverter {
+	private static ImageConverter instance = new ImageConverter(MNOConfiguration.getInstance());
+
+	private final ThreadPoolExecutor executor;
+	private final ResultCache cache;
+	private final long retryAfter;
+
+	public static ImageConverter getInstance() {
+		return instance;
+	}
+
+	private ImageConverter(MNOConfiguration conf) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(conf.getImageConverterThreads(), conf.getImageConverterThreads(),
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(conf.getImageConverterQueue()),
+				r -> {
+					Thread t = new Thread(r, "image-converter-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		cache = new ResultCache(conf.getImageCacheSize() * 1024L * 1024L);
+		retryAfter = conf.getVerificationRetryAfter();
+	}
+
+	/**
+	 * Convert the image to BMP.
+	 * @param image The image to convert, in any format supported by ImageIO
+	 * @return A stage that completes with the BMP, or fails with a {@link WebApplicationException}
+	 * if the image could not be converted
+	 */
+	public CompletionStage<byte[]> toBmp(final byte[] image) {
+		final ByteBuffer hash = hash(image);
+		byte[] cached = cache.get(hash);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+
+		try {
+			final int maxSize = MNOConfiguration.getInstance().getImageMaxSize();
+			return CompletableFuture.supplyAsync(() -> {
+				byte[] bmp = convert(image, maxSize);
+				cache.put(hash, bmp);
+				return bmp;
+			}, executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<byte[]> future = new CompletableFuture<>();
+			future.completeExceptionally(new ServerBusyException(retryAfter));
+			return future;
+		}
+	}
+
+	/**
+	 * @param maxSize The maximum width and height in pixels of the image
+	 */
+	static byte[] convert(byte[] image, int maxSize) {
+		try {
+			BufferedImage source = read(image, maxSize);
+
+			// The BMP writer does not support every image type (e.g. with alpha), so convert to 24 bits RGB
+			BufferedImage rgb = source;
+			if (source.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+				rgb = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+				Graphics2D g = rgb.createGraphics();
+				g.drawImage(source, 0, 0, null);
+				g.dispose();
+			}
+
+			// 54 bytes of headers, and rows padded to 4 bytes
+			int size = 54 + ((rgb.getWidth() * 3 + 3) & ~3) * rgb.getHeight();
+			BmpOutputStream out = new BmpOutputStream(size);
+			if (!ImageIO.write(rgb, "bmp", out))
+				throw unsupported();
+			return out.getBytes();
+		} catch (IOException e) {
+			throw unsupported();
+		}
+	}
+
+	/**
+	 * Decode the image, after checking its dimensions as declared in its header
+	 */
+	private static BufferedImage read(byte[] image, int maxSize) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				throw unsupported();
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				if (width > maxSize || height > maxSize)
+					throw new WebApplicationException("Image dimensions " + width + "x" + height + " exceed "
+							+ maxSize + "x" + maxSize, Response.Status.REQUEST_ENTITY_TOO_LARGE);
+				return reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Returns its buffer without copying it if it was sized exactly, which it normally is for a BMP
+	 */
+	private static class BmpOutputStream extends ByteArrayOutputStream {
+		BmpOutputStream(int size) {
+			super(size);
+		}
+
+		byte[] getBytes() {
+			return count == buf.length ? buf : toByteArray();
+		}
+	}
+
+	private static WebApplicationException unsupported() {
+		return new WebApplicationException("Image manipulation of given image type is not supported", Response.Status.NOT_IMPLEMENTED);
+	}
+
+	private static ByteBuffer hash(byte[] data) {
+		try {
+			return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every JVM supports SHA-256
+		}
+	}
+
+	/**
+	 * A least recently used cache of conversion results, bounded by the total size of the results.
+	 */
+	private static class ResultCache {
+		private final long maxSize;
+		private long size;
+		private final LinkedHashMap<ByteBuffer, byte[]> results = new LinkedHashMap<>(16, 0.75f, true);
+
+		private ResultCache(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		private synchronized byte[] get(ByteBuffer hash) {
+			return results.get(hash);
+		}
+
+		private synchronized void put(ByteBuffer hash, byte[] result) {
+			if (result.length > maxSize)
+				return;
+
+			byte[] previous = results.put(hash, result);
+			if (previous != null)
+				size -= previous.length;
+			size += result.length;
+
+			Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = results.entrySet().iterator();
+			while (size > maxSize && iterator.hasNext()) {
+				size -= iterator.next().getValue().length;
+				iterator.remove();
+			}
+		}
+	}
+}
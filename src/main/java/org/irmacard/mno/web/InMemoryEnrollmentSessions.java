@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the running enrollment sessions in memory. Sessions expire when they have not been used
+ * for a while (the idle timeout) or when they have existed for too long (the lifetime), whichever
+ * comes first. Expired sessions are removed lazily on lookup and periodically by a background thread.
+ * <p>
+ * The amount of sessions is bounded by a counter in which a slot is reserved before a session is added. If
+ * the maximum is reached, a session is evicted from a queue in the order in which sessions were added, except
+ * that sessions that were used since they were queued get a second chance at the end of the queue (the "clock"
+ * approximation of least recently used). Adding a session therefore takes constant time on average, even
+ * when the store is full.
+ */
+public class InMemoryEnrollmentSessions implements EnrollmentSessions {
+    /** The maximum amount of used sessions that are requeued before one of them is evicted anyway */
+    private static final int MAX_SECOND_CHANCES = 16;
+
+    private final ConcurrentHashMap<String, EnrollmentSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<QueueEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final long idleTimeout;
+    private final long lifetime;
+    private final int maxSessions;
+
+    private final AtomicLong idleExpirations = new AtomicLong();
+    private final AtomicLong lifetimeExpirations = new AtomicLong();
+    private final AtomicLong capacityEvictions = new AtomicLong();
+
+    /**
+     * A session in the eviction queue, with the time at which it was last accessed when it was queued
+     */
+    private static class QueueEntry {
+        final String token;
+        final long accessed;
+
+        QueueEntry(String token, long accessed) {
+            this.token = token;
+            this.accessed = accessed;
+        }
+    }
+
+    public InMemoryEnrollmentSessions(MNOConfiguration conf) {
+        this(TimeUnit.SECONDS.toMillis(conf.getSessionIdleTimeout()),
+                TimeUnit.SECONDS.toMillis(conf.getSessionLifetime()),
+                conf.getMaxSessions(), conf.getSessionCleanupInterval());
+    }
+
+    /**
+     * @param cleanupInterval Amount of seconds between two sweeps for expired sessions, or 0 for no sweeps
+     */
+    public InMemoryEnrollmentSessions(long idleTimeout, long lifetime, int maxSessions, long cleanupInterval) {
+        this.idleTimeout = idleTimeout;
+        this.lifetime = lifetime;
+        this.maxSessions = Math.max(1, maxSessions);
+
+        if (cleanupInterval <= 0)
+            return;
+
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "enrollment-session-cleaner");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                removeExpired(System.currentTimeMillis());
+            }
+        }, cleanupInterval, cleanupInterval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void addSession(EnrollmentSession session) {
+        long now = System.currentTimeMillis();
+
+        // Reserve a slot, evicting sessions until one is free
+        while (true) {
+            int current = count.get();
+            if (current < maxSessions) {
+                if (count.compareAndSet(current, current + 1))
+                    break;
+            } else if (!evict(now)) {
+                // The sessions holding the slots are still being added by other threads
+                Thread.yield();
+            }
+        }
+
+        if (sessions.put(session.getSessionToken(), session) != null)
+            count.decrementAndGet(); // Replaced a session with the same token
+        queue.add(new QueueEntry(session.getSessionToken(), session.getLastAccessed()));
+
+        // Drop a few sessions that were removed or expired from the front of the queue, so that it does not
+        // keep growing if the background sweeps are disabled
+        for (int i = 0; i < 2; i++) {
+            QueueEntry head = queue.peek();
+            if (head == null)
+                break;
+            EnrollmentSession headSession = sessions.get(head.token);
+            if (headSession != null && !expire(headSession, now))
+                break;
+            queue.remove(head);
+        }
+    }
+
+    @Override
+    public EnrollmentSession getSession(String sessionToken) {
+        EnrollmentSession session = sessions.get(sessionToken);
+        if (session == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+        if (expire(session, now))
+            return null;
+
+        session.touch(now);
+        return session;
+    }
+
+    @Override
+    public boolean contains(String sessionToken) {
+        EnrollmentSession session = sessions.get(sessionToken);
+        return session != null && !expire(session, System.currentTimeMillis());
+    }
+
+    @Override
+    public void update(EnrollmentSession session) {
+        // The stored instance is the one that was modified, so there is nothing to write back
+    }
+
+    @Override
+    public boolean replaceState(EnrollmentSession session, EnrollmentSession.State expected,
+                                EnrollmentSession.State state) {
+        EnrollmentSession stored = sessions.get(session.getSessionToken());
+        if (stored == null || expire(stored, System.currentTimeMillis()) || !stored.compareAndSetState(expected, state))
+            return false;
+        session.setState(state);
+        return true;
+    }
+
+    @Override
+    public void remove(EnrollmentSession session) {
+        if (sessions.remove(session.getSessionToken()) != null)
+            count.decrementAndGet();
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getIdleExpirations() {
+        return idleExpirations.get();
+    }
+
+    public long getLifetimeExpirations() {
+        return lifetimeExpirations.get();
+    }
+
+    public long getCapacityEvictions() {
+        return capacityEvictions.get();
+    }
+
+    /**
+     * Remove the session if it has expired, and count the reason it expired.
+     * @return true if the session has expired
+     */
+    private boolean expire(EnrollmentSession session, long now) {
+        AtomicLong counter;
+        if (now - session.getCreated() > lifetime)
+            counter = lifetimeExpirations;
+        else if (now - session.getLastAccessed() > idleTimeout)
+            counter = idleExpirations;
+        else
+            return false;
+
+        // Only count the expiry if it was us who removed the session
+        if (sessions.remove(session.getSessionToken(), session)) {
+            count.decrementAndGet();
+            counter.incrementAndGet();
+        }
+        return true;
+    }
+
+    void removeExpired(long now) {
+        for (EnrollmentSession session : sessions.values())
+            expire(session, now);
+        queue.removeIf(entry -> !sessions.containsKey(entry.token));
+    }
+
+    /**
+     * Remove the first session of the queue that has not been used since it was queued (or that expired)
+     * @return false if the queue is empty
+     */
+    private boolean evict(long now) {
+        int chances = 0;
+        QueueEntry entry;
+        while ((entry = queue.poll()) != null) {
+            EnrollmentSession session = sessions.get(entry.token);
+            if (session == null)
+                continue; // Already removed
+            if (expire(session, now))
+                return true;
+
+            if (session.getLastAccessed() != entry.accessed && chances++ < MAX_SECOND_CHANCES) {
+                queue.add(new QueueEntry(entry.token, session.getLastAccessed()));
+                continue;
+            }
+
+            if (sessions.remove(entry.token, session)) {
+                count.decrementAndGet();
+                capacityEvictions.incrementAndGet();
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.api.common.ClientQr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects issuing session requests for at most a short window, or until enough of them have arrived, and
+ * then sends them to the API server together. The API server has no batch endpoint, so the requests of a
+ * batch are sent as separate POSTs over the pooled connections of {@link ApiClient}; each request gets its
+ * own result or exception. At most api_max_connections of these POSTs are in flight at once: the remaining
+ * requests of a batch wait in a queue, and are sent one by one as earlier ones are answered. Bursts of
+ * enrollments therefore wait here, in order, instead of all competing for (and timing out on) a connection
+ * from the pool.
+ */
+class IssuingBatcher {
+	private static final IssuingBatcher instance = create(MNOConfiguration.getInstance());
+
+	private final long window;
+	private final int size;
+	private final ScheduledExecutorService timer;
+	private final Semaphore slots;
+	private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<>();
+	/** Amount of calls to {@link #sendQueued()} that the thread that is sending has yet to handle */
+	private final AtomicInteger drains = new AtomicInteger();
+
+	private final Object lock = new Object();
+	private List<Item> pending = new ArrayList<>();
+
+	private static final Metrics.Histogram batchWait = Metrics.getInstance().histogram("mno_issue_batch_wait_seconds",
+			"Time issuing session requests waited for their batch and a free connection before they were sent");
+	private static final Metrics.Counter batches = Metrics.getInstance().counter("mno_issue_batches_total",
+			"Amount of batches of issuing session requests sent, per reason", "trigger");
+
+	private static class Item {
+		final String jwt;
+		final Span trace;
+		final long queued = System.nanoTime();
+		final CompletableFuture<ClientQr> result = new CompletableFuture<>();
+
+		Item(String jwt, Span trace) {
+			this.jwt = jwt;
+			this.trace = trace;
+		}
+	}
+
+	/**
+	 * @return the batcher, or null if batching is disabled in the configuration
+	 */
+	static IssuingBatcher getInstance() {
+		return instance;
+	}
+
+	private static IssuingBatcher create(MNOConfiguration conf) {
+		if (conf.getIssueBatchWindow() <= 0 || conf.getIssueBatchSize() <= 1)
+			return null;
+		return new IssuingBatcher(conf.getIssueBatchWindow(), conf.getIssueBatchSize(), conf.getApiMaxConnections());
+	}
+
+	/**
+	 * @param windowMillis Maximum time that a request waits for its batch to fill up
+	 * @param size Amount of requests after which a batch is sent without waiting for the window
+	 * @param maxInFlight Maximum amount of requests that are sent to the API server, but not yet answered
+	 */
+	IssuingBatcher(long windowMillis, int size, int maxInFlight) {
+		this.window = windowMillis;
+		this.size = size;
+		this.slots = new Semaphore(Math.max(1, maxInFlight));
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "issue-batcher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Add the request to the current batch
+	 * @param jwt The issuing JWT to send to the API server
+	 * @return A stage that completes with the session of this request
+	 */
+	CompletionStage<ClientQr> submit(String jwt, Span trace) {
+		Item item = new Item(jwt, trace);
+		List<Item> batch = null;
+
+		synchronized (lock) {
+			pending.add(item);
+			if (pending.size() >= size) {
+				batch = pending;
+				pending = new ArrayList<>();
+			} else if (pending.size() == 1) {
+				// First request of a new batch: send it when the window has passed
+				final List<Item> current = pending;
+				timer.schedule(() -> flush(current), window, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if (batch != null) {
+			batches.inc("size");
+			send(batch);
+		}
+		return item.result;
+	}
+
+	/**
+	 * Send the batch if it is still the one that is being collected, i.e. it did not fill up in the meantime
+	 */
+	private void flush(List<Item> batch) {
+		synchronized (lock) {
+			if (pending != batch)
+				return;
+			pending = new ArrayList<>();
+		}
+		batches.inc("window");
+		send(batch);
+	}
+
+	private void send(List<Item> batch) {
+		queue.addAll(batch);
+		sendQueued();
+	}
+
+	/**
+	 * Send queued requests while fewer than the maximum are in flight. The queue is checked after acquiring a
+	 * slot, and again after releasing one, so that no request stays queued while a slot is free. Only one thread
+	 * sends at a time: a call that arrives while another one is sending (such as the completion of a request that
+	 * failed immediately, e.g. because the circuit breaker is open) makes that one check the queue once more,
+	 * instead of recursing.
+	 */
+	private void sendQueued() {
+		if (drains.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+		do {
+			while (!queue.isEmpty() && slots.tryAcquire()) {
+				final Item item = queue.poll();
+				if (item == null) {
+					slots.release();
+					continue;
+				}
+
+				batchWait.observe(System.nanoTime() - item.queued);
+				try {
+					post(item.jwt, item.trace).whenComplete((qr, ex) -> {
+						slots.release();
+						if (ex != null)
+							item.result.completeExceptionally(ex);
+						else
+							item.result.complete(qr);
+						sendQueued();
+					});
+				} catch (RuntimeException e) {
+					slots.release();
+					item.result.completeExceptionally(e);
+				}
+			}
+			missed = drains.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Send a single request of a batch to the API server
+	 */
+	CompletionStage<ClientQr> post(String jwt, Span trace) {
+		return ApiClient.postIssuingJwt(jwt, trace);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.irmacard.api.common.util.GsonUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signs JWTs using RSA (RS256, RS384 or RS512), with less overhead than {@link io.jsonwebtoken.Jwts#builder()}:
+ * each thread reuses a {@link Signature} that is initialized with the key only once, the encoded header
+ * is cached per key ID, and the token is assembled in a reusable per-thread buffer.
+ *
+ * Usage: <code>JwtSigner.get(sigAlg, privKey).sign(keyId, claims)</code>.
+ */
+public class JwtSigner {
+	private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+	private static final LongAdder signatureCount = new LongAdder();
+	private static final LongAdder signingNanos = new LongAdder();
+	private static final LongAccumulator maxSigningNanos = new LongAccumulator(Math::max, 0);
+
+	static {
+		Metrics metrics = Metrics.getInstance();
+		metrics.counter("mno_jwt_signatures_total", "Amount of JWTs signed", JwtSigner::getSignatureCount);
+		metrics.counter("mno_jwt_signing_seconds_total", "Total time spent signing JWTs",
+				() -> getTotalSigningTime(TimeUnit.MICROSECONDS) / 1e6);
+		metrics.gauge("mno_jwt_signing_seconds_max", "Longest time spent signing a JWT",
+				() -> getMaxSigningTime(TimeUnit.MICROSECONDS) / 1e6);
+	}
+
+	private static volatile JwtSigner current;
+
+	private final SignatureAlgorithm algorithm;
+	private final PrivateKey key;
+
+	// Base64 encoded headers including the trailing '.', per key ID ("" if none)
+	private final ConcurrentHashMap<String, byte[]> headers = new ConcurrentHashMap<>();
+	private final ThreadLocal<Signature> signatures;
+	private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+	private JwtSigner(final SignatureAlgorithm algorithm, final PrivateKey key) {
+		this.algorithm = algorithm;
+		this.key = key;
+
+		signatures = ThreadLocal.withInitial(() -> {
+			try {
+				Signature signature = Signature.getInstance(algorithm.getJcaName());
+				signature.initSign(key);
+				return signature;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Could not initialize " + algorithm.getJcaName() + " signature", e);
+			}
+		});
+	}
+
+	/**
+	 * @return true if this class can create signatures using the specified algorithm
+	 */
+	public static boolean supports(SignatureAlgorithm algorithm) {
+		return algorithm == SignatureAlgorithm.RS256
+				|| algorithm == SignatureAlgorithm.RS384
+				|| algorithm == SignatureAlgorithm.RS512;
+	}
+
+	/**
+	 * Get a signer for the specified algorithm and key. The last signer is reused as long as the
+	 * algorithm and key stay the same.
+	 */
+	public static JwtSigner get(SignatureAlgorithm algorithm, PrivateKey key) {
+		if (!supports(algorithm))
+			throw new IllegalArgumentException("Unsupported signature algorithm " + algorithm);
+
+		JwtSigner signer = current;
+		if (signer == null || signer.algorithm != algorithm || signer.key != key) {
+			signer = new JwtSigner(algorithm, key);
+			current = signer;
+		}
+
+		return signer;
+	}
+
+	/**
+	 * Create a signed JWT.
+	 * @param keyId The key ID to include in the header, or null
+	 * @param claims The (JSON) body of the JWT
+	 * @return The compact serialization of the JWT
+	 */
+	public String sign(String keyId, String claims) {
+		long start = System.nanoTime();
+
+		byte[] header = getHeader(keyId);
+		byte[] payload = claims.getBytes(StandardCharsets.UTF_8);
+		Buffers buf = buffers.get();
+
+		// header.payload
+		int length = header.length;
+		buf.ensureCapacity(length + encodedLength(payload.length) + 1 + encodedLength(512));
+		System.arraycopy(header, 0, buf.token, 0, length);
+		length = buf.append(length, payload);
+
+		byte[] signature;
+		try {
+			Signature signer = signatures.get();
+			signer.update(buf.token, 0, length);
+			signature = signer.sign();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Could not sign JWT", e);
+		}
+
+		// header.payload.signature
+		buf.ensureCapacity(length + 1 + encodedLength(signature.length));
+		buf.token[length++] = '.';
+		length = buf.append(length, signature);
+
+		String jwt = new String(buf.token, 0, length, StandardCharsets.ISO_8859_1);
+
+		long duration = System.nanoTime() - start;
+		signatureCount.increment();
+		signingNanos.add(duration);
+		maxSigningNanos.accumulate(duration);
+
+		return jwt;
+	}
+
+	private byte[] getHeader(String keyId) {
+		String key = keyId == null ? "" : keyId;
+		byte[] header = headers.get(key);
+		if (header == null) {
+			String json = "{\"alg\":\"" + algorithm.getValue() + "\""
+					+ (keyId == null ? "" : ",\"kid\":" + GsonUtil.getGson().toJson(keyId))
+					+ "}";
+			header = (encoder.encodeToString(json.getBytes(StandardCharsets.UTF_8)) + ".")
+					.getBytes(StandardCharsets.ISO_8859_1);
+			headers.putIfAbsent(key, header);
+		}
+		return header;
+	}
+
+	private static int encodedLength(int length) {
+		return (length * 4 + 2) / 3;
+	}
+
+	/**
+	 * @return the amount of JWTs that were signed
+	 */
+	public static long getSignatureCount() {
+		return signatureCount.sum();
+	}
+
+	/**
+	 * @return the total time spent signing JWTs
+	 */
+	public static long getTotalSigningTime(TimeUnit unit) {
+		return unit.convert(signingNanos.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the longest time spent signing a single JWT
+	 */
+	public static long getMaxSigningTime(TimeUnit unit) {
+		return unit.convert(maxSigningNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Per-thread buffers in which the token is assembled. The Base64 encoder can only write to the
+	 * start of an array, so the parts are first encoded into the scratch buffer.
+	 */
+	private static class Buffers {
+		private byte[] token = new byte[4096];
+		private byte[] scratch = new byte[4096];
+
+		private void ensureCapacity(int capacity) {
+			if (token.length < capacity)
+				token = Arrays.copyOf(token, Math.max(capacity, token.length * 2));
+		}
+
+		/**
+		 * Base64url-encode the data into the token buffer at the specified position.
+		 * @return the position after the encoded data
+		 */
+		private int append(int position, byte[] data) {
+			int length = encodedLength(data.length);
+			if (scratch.length < length)
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+
+			encoder.encode(data, scratch);
+			System.arraycopy(scratch, 0, token, position, length);
+			return position + length;
+		}
+	}
+}
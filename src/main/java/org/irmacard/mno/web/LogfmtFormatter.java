@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+/**
+ * Formats log records as a line of key=value pairs: the time, level, logger and (if logged through an
+ * {@link AsyncLogHandler}) thread, followed by the message. Messages of this server consist of key=value pairs
+ * themselves, starting with "event=". Other messages are quoted as the value of "msg".
+ */
+class LogfmtFormatter extends Formatter {
+	@Override
+	public String format(LogRecord record) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("time=").append(Instant.ofEpochMilli(record.getMillis()));
+		sb.append(" level=").append(record.getLevel().getName());
+		sb.append(" logger=").append(shortName(record.getLoggerName()));
+
+		if (record instanceof AsyncLogHandler.Record)
+			appendValue(sb.append(" thread="), ((AsyncLogHandler.Record) record).threadName);
+
+		String message = formatMessage(record);
+		if (message != null && message.startsWith("event="))
+			sb.append(' ').append(message);
+		else
+			appendValue(sb.append(" msg="), String.valueOf(message));
+
+		if (record.getThrown() != null) {
+			appendValue(sb.append(" exception="), record.getThrown().toString());
+			StringWriter trace = new StringWriter();
+			record.getThrown().printStackTrace(new PrintWriter(trace));
+			sb.append('\n').append(trace.toString().trim());
+		}
+
+		return sb.append('\n').toString();
+	}
+
+	private static String shortName(String name) {
+		if (name == null)
+			return "";
+		return name.substring(name.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * Append the value, quoted and escaped if it contains spaces, quotes or an equals sign
+	 */
+	static void appendValue(StringBuilder sb, String value) {
+		boolean quote = value.isEmpty();
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=';
+		}
+
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c == '\n')
+				sb.append("\\n");
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sets up the logging of this server, and contains helpers for logging on the request path. The SLF4J loggers
+ * of this package log through java.util.logging to an {@link AsyncLogHandler}, so that requests never wait for
+ * console I/O, using the key=value format of {@link LogfmtFormatter}.
+ * <p>
+ * Documents, JWTs and messages contain personal data, so they are logged only at debug level, wrapped in
+ * {@link #lazy(Supplier)} so that they are not serialized unless debug logging is enabled. Frequent events
+ * can be sampled per category using {@link #sample(String)}.
+ */
+public class Logging {
+	// Keep a reference, as java.util.logging forgets the configuration of loggers that are garbage collected
+	private static final Logger logger = Logger.getLogger("org.irmacard.mno.web");
+	private static final ConcurrentHashMap<String, AtomicLong> sampleCounts = new ConcurrentHashMap<>();
+	private static AsyncLogHandler handler;
+
+	private Logging() {}
+
+	/**
+	 * Log the records of this package asynchronously, at the level from the configuration. Called whenever
+	 * the configuration is (re)loaded.
+	 */
+	public static synchronized void install(MNOConfiguration conf) {
+		Level level = parseLevel(conf.getLogLevel());
+		if (level != null)
+			logger.setLevel(level);
+		if (handler != null)
+			return;
+
+		Handler console = new ConsoleHandler();
+		console.setLevel(Level.ALL);
+		console.setFormatter(new LogfmtFormatter());
+
+		handler = new AsyncLogHandler(console, conf.getLogQueueSize());
+		logger.addHandler(handler);
+		logger.setUseParentHandlers(false);
+
+		Metrics.getInstance().counter("mno_log_dropped_total", "Log records dropped because the log buffer was full",
+				handler::getDropped);
+	}
+
+	/**
+	 * @return the java.util.logging level of the specified log_level, or null if it is unknown
+	 */
+	static Level parseLevel(String level) {
+		if (level == null)
+			return null;
+
+		switch (level.toLowerCase()) {
+			case "trace": return Level.FINEST;
+			case "debug": return Level.FINE;
+			case "info": return Level.INFO;
+			case "warn": return Level.WARNING;
+			case "error": return Level.SEVERE;
+			default: return null;
+		}
+	}
+
+	/**
+	 * Decide whether to log an event of the specified category. If the configuration specifies a sampling
+	 * rate of n for the category, this returns true for one in every n events; otherwise always true.
+	 */
+	public static boolean sample(String category) {
+		Integer rate = MNOConfiguration.getInstance().getLogSampling().get(category);
+		if (rate == null || rate <= 1)
+			return true;
+
+		AtomicLong count = sampleCounts.get(category);
+		if (count == null)
+			count = sampleCounts.computeIfAbsent(category, c -> new AtomicLong());
+		return count.getAndIncrement() % rate == 0;
+	}
+
+	/**
+	 * @return An object whose {@link Object#toString()} returns the value of the supplier, quoted if necessary
+	 * to use it as the value of a key=value pair. The value is only computed if the log statement is actually
+	 * logged.
+	 */
+	public static Object lazy(final Supplier<?> value) {
+		return new Object() {
+			@Override
+			public String toString() {
+				StringBuilder sb = new StringBuilder();
+				LogfmtFormatter.appendValue(sb, String.valueOf(value.get()));
+				return sb.toString();
+			}
+		};
+	}
+}
@@ -46,8 +46,18 @@ public class MNOApplication extends ResourceConfig {
         // register exception handler, for converting and then returning exceptions as JSON output
         register(MNOExceptionMapper.class);
 
+        // limit the size of request bodies, and the rate at which sessions are started
+        register(EntitySizeFeature.class);
+        register(RateLimitFeature.class);
+
         // register enrollment applications
         register(PassportEnrollmentResource.class);
         register(DLEnrollmentResource.class);
+
+        // register metrics and traces, and the endpoints that expose them (only to holders of the admin token)
+        register(RequestMetricsFeature.class);
+        register(AdminAuthFeature.class);
+        register(MetricsResource.class);
+        register(TraceResource.class);
     }
 }
@@ -1,22 +1,51 @@
 package org.irmacard.mno.web;
 
+import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.irmacard.api.common.util.GsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * The configuration of the server, loaded from config.json. An instance is an immutable snapshot: derived
+ * values such as the API server URLs and the keys are computed once when it is loaded. If config.json is a
+ * file on disk, it is checked periodically for changes, in which case a new snapshot is loaded in the
+ * background and published atomically, so that requests never wait for a reload. Note that some settings
+ * (e.g. thread pool and session store sizes) are only read when the server starts.
+ */
 @SuppressWarnings({"MismatchedQueryAndUpdateOfCollection", "FieldCanBeLocal", "unused"})
 public class MNOConfiguration {
+	private static final Logger logger = LoggerFactory.getLogger(MNOConfiguration.class);
 	private static final String filename = "config.json";
-	private static MNOConfiguration instance;
+	private static volatile MNOConfiguration instance;
+	private static ScheduledExecutorService reloader;
 
 	private String api_server = "";
 	private String api_name = "";
@@ -24,38 +53,237 @@ public class MNOConfiguration {
 	private boolean sign_issue_jwts = true;
 	private String jwt_privatekey = "sk.der";
 
+	private int session_idle_timeout = 300;
+	private int session_lifetime = 1800;
+	private int session_cleanup_interval = 60;
+	private int max_sessions = 100000;
+	private String session_store = "memory";
+	private String session_store_file = new File(System.getProperty("java.io.tmpdir"), "irma_mno_sessions").getPath();
+	private int session_store_size = 64;
+	private int api_max_connections = 20;
+	private int api_async_threads = 20;
+	private HashMap<String, List<String>> surname_prefixes = new HashMap<>();
+	private int image_converter_threads = Runtime.getRuntime().availableProcessors();
+	private int image_converter_queue = 32;
+	private int image_cache_size = 32;
+	private int image_max_size = 2048;
+	private int verification_threads = Runtime.getRuntime().availableProcessors();
+	private int verification_queue = 64;
+	private int verification_retry_after = 5;
+	private int config_reload_interval = 10;
+	private LinkedHashMap<String, int[]> age_attributes = new LinkedHashMap<>();
+	private String log_level = "info";
+	private int log_queue_size = 8192;
+	private HashMap<String, Integer> log_sampling = new HashMap<>();
+	private double trace_sample_rate = 0;
+	private int trace_buffer_size = 4096;
+	private boolean trace_client_sampling = false;
+	private String admin_token = "";
+	private int issue_batch_window = 0;
+	private int issue_batch_size = 32;
+	private String api_server_secondary = "";
+	private int api_connect_timeout = 5000;
+	private int api_read_timeout = 10000;
+	private int api_retries = 2;
+	private int api_retry_backoff = 100;
+	private int api_hedge_delay = 0;
+	private int api_circuit_failures = 5;
+	private int api_circuit_open_time = 30;
+	private int max_entity_size = 1024 * 1024;
+	private HashMap<String, Integer> entity_size_limits;
+	private int disclosure_jwt_pool_size = 4;
+	private int disclosure_jwt_max_age = 60;
+	private int token_pool_size = 256;
+	private double start_rate_limit = 0;
+	private int start_rate_burst = 20;
+	private double start_global_rate_limit = 0;
+	private int start_global_rate_burst = 100;
+	private String rate_limit_key_header = "";
+	private int rate_limit_trusted_proxies = 1;
+	private int rate_limit_buckets = 65536;
+	private String csca_certificates = "";
+	private int document_signer_cache_time = 3600;
+
+	// Derived values, computed by init()
+	private transient String apiServerIssueUrl;
+	private transient String apiServerDisclosureUrl;
+	private transient String secondaryApiServerIssueUrl;
+	private transient String secondaryApiServerDisclosureUrl;
+	private transient SignatureAlgorithm jwtAlgorithm;
 	private transient PrivateKey jwtPrivateKey;
+	private transient KeyManagementException jwtPrivateKeyException;
 	private transient PublicKey jwtApiKey;
+	private transient KeyManagementException jwtApiKeyException;
+	private transient List<X509Certificate> cscaCertificates = Collections.emptyList();
+	private transient long lastModified;
 
 	public MNOConfiguration() {}
 
 	/**
 	 * Reloads the configuration from disk so that {@link #getInstance()} returns the updated version
 	 */
-	public static void load() {
+	public static synchronized void load() {
+		MNOConfiguration conf;
+		try {
+			conf = read();
+		} catch (IOException|JsonSyntaxException e) {
+			if (instance != null) {
+				// Perhaps the file is being written; as the modification time of the current configuration
+				// is left alone, the reloader tries again later
+				logger.error("event=configuration_unreadable msg=\"Keeping the current configuration\" error={}",
+						Logging.lazy(e::toString));
+				return;
+			}
+
+			// The modification time of the defaults is 0, so the reloader keeps trying to read the file
+			logger.warn("event=configuration_unreadable msg=\"Using default values\" error={}", Logging.lazy(e::toString));
+			conf = new MNOConfiguration();
+			conf.init();
+		}
+
+		instance = conf;
+		Logging.install(instance);
+
+		logger.info("event=configuration_loaded configuration={}", Logging.lazy(instance::toString));
+
+		if (reloader == null && instance.config_reload_interval > 0)
+			startReloader(instance.config_reload_interval);
+	}
+
+	public static MNOConfiguration getInstance() {
+		MNOConfiguration conf = instance;
+		if (conf == null) {
+			synchronized (MNOConfiguration.class) {
+				if (instance == null)
+					load();
+				conf = instance;
+			}
+		}
+
+		return conf;
+	}
+
+	private static MNOConfiguration read() throws IOException, JsonSyntaxException {
 		// TODO: GSon seems to always be lenient (i.e. allow comments in the JSon), even though
 		// the documentation states that by default, it is not lenient. Why is this? Could change?
+		long lastModified = getLastModified();
+		String json = new String(getResource(filename));
+		MNOConfiguration conf = GsonUtil.getGson().fromJson(json, MNOConfiguration.class);
+		if (conf == null)
+			throw new IOException(filename + " is empty");
+
+		conf.lastModified = lastModified;
+		conf.init();
+		return conf;
+	}
+
+	/**
+	 * Compute the derived values of this configuration
+	 */
+	private void init() {
+		apiServerIssueUrl = api_server + "/issue/";
+		apiServerDisclosureUrl = api_server + "/verification/";
+		if (api_server_secondary != null && !api_server_secondary.isEmpty()) {
+			secondaryApiServerIssueUrl = api_server_secondary + "/issue/";
+			secondaryApiServerDisclosureUrl = api_server_secondary + "/verification/";
+		}
+		jwtAlgorithm = SignatureAlgorithm.RS256;
+		if (Logging.parseLevel(log_level) == null) {
+			String current = instance != null ? instance.log_level : "info";
+			logger.warn("event=log_level_invalid log_level={} msg=\"Keeping log level {}\"", log_level, current);
+			log_level = current;
+		}
+		surname_prefixes = surname_prefixes == null ? new HashMap<String, List<String>>() : surname_prefixes;
+		log_sampling = log_sampling == null ? new HashMap<String, Integer>() : log_sampling;
+		if (age_attributes == null || age_attributes.isEmpty()) {
+			age_attributes = new LinkedHashMap<>();
+			age_attributes.put("ageLower", new int[] {12, 16, 18, 21});
+			age_attributes.put("ageHigher", new int[] {50, 60, 65, 75});
+		}
+		if (entity_size_limits == null) {
+			entity_size_limits = new HashMap<>();
+			entity_size_limits.put("/v2/passport/verify-document", 64 * 1024);
+			entity_size_limits.put("/v2/dl/verify-document", 64 * 1024);
+		}
+
+		try {
+			jwtPrivateKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(readKey(jwt_privatekey)));
+		} catch (KeyManagementException e) {
+			jwtPrivateKeyException = e;
+		} catch (NoSuchAlgorithmException|InvalidKeySpecException e) {
+			jwtPrivateKeyException = new KeyManagementException(e);
+		}
+
 		try {
-			String json = new String(getResource(filename));
-			instance = GsonUtil.getGson().fromJson(json, MNOConfiguration.class);
-		} catch (IOException |JsonSyntaxException e) {
-			System.out.println("WARNING: could not load configuration file. Using default values");
-			instance = new MNOConfiguration();
+			jwtApiKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(readKey(jwt_api_key)));
+		} catch (KeyManagementException e) {
+			jwtApiKeyException = e;
+		} catch (NoSuchAlgorithmException|InvalidKeySpecException e) {
+			jwtApiKeyException = new KeyManagementException(e);
+		}
+
+		if (csca_certificates != null && !csca_certificates.isEmpty()) {
+			try {
+				List<X509Certificate> certificates = new ArrayList<>();
+				for (Certificate certificate : CertificateFactory.getInstance("X.509")
+						.generateCertificates(new ByteArrayInputStream(getResource(csca_certificates))))
+					certificates.add((X509Certificate) certificate);
+				cscaCertificates = Collections.unmodifiableList(certificates);
+			} catch (IOException|CertificateException e) {
+				logger.warn("event=csca_certificates_unreadable file={} error={}", csca_certificates,
+						Logging.lazy(e::toString));
+			}
 		}
+	}
 
-		System.out.println("Configuration:");
-		System.out.println(instance.toString());
+	private static byte[] readKey(String filename) throws KeyManagementException {
+		try {
+			byte[] bytes = MNOConfiguration.getResource(filename);
+			if (bytes == null || bytes.length == 0)
+				throw new KeyManagementException("Could not read key " + filename);
+			return bytes;
+		} catch (IOException e) {
+			throw new KeyManagementException(e);
+		}
 	}
 
-	public static MNOConfiguration getInstance() {
-		if (instance == null)
-			load();
+	/**
+	 * Periodically check if config.json has changed on disk, and if so load it in the background.
+	 */
+	private static void startReloader(int interval) {
+		reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "configuration-reloader");
+			t.setDaemon(true);
+			return t;
+		});
 
-		return instance;
+		reloader.scheduleWithFixedDelay(() -> {
+			// An exception would cancel all further runs, so never let one escape
+			try {
+				long lastModified = getLastModified();
+				if (lastModified != 0 && lastModified != instance.lastModified) {
+					logger.info("event=configuration_changed");
+					load();
+				}
+			} catch (RuntimeException e) {
+				logger.error("event=configuration_reload_failed", e);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
 	}
 
-	private String getApiServerUrl() {
-		return api_server;
+	/**
+	 * @return the modification time of config.json, or 0 if it is not a file on disk
+	 */
+	private static long getLastModified() {
+		URL url = MNOConfiguration.class.getClassLoader().getResource(filename);
+		if (url == null || !"file".equals(url.getProtocol()))
+			return 0;
+
+		try {
+			return new File(url.toURI()).lastModified();
+		} catch (URISyntaxException|IllegalArgumentException e) {
+			return 0;
+		}
 	}
 
 	public String getApiName() {
@@ -67,25 +295,375 @@ public class MNOConfiguration {
 	}
 
 	public PrivateKey getJwtPrivateKey() throws KeyManagementException {
-		if (jwtPrivateKey == null) {
-			try {
-				byte[] bytes = MNOConfiguration.getResource(jwt_privatekey);
-				if (bytes == null || bytes.length == 0)
-					throw new KeyManagementException("Could not read private key");
+		if (jwtPrivateKey == null)
+			throw new KeyManagementException("Could not load private key", jwtPrivateKeyException);
 
-				PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(bytes);
+		return jwtPrivateKey;
+	}
 
-				jwtPrivateKey = KeyFactory.getInstance("RSA").generatePrivate(spec);
-			} catch (IOException|NoSuchAlgorithmException|InvalidKeySpecException e) {
-				throw new KeyManagementException(e);
-			}
-		}
+	/**
+	 * @return the amount of seconds after which an unused enrollment session expires
+	 */
+	public int getSessionIdleTimeout() {
+		return session_idle_timeout;
+	}
 
-		return jwtPrivateKey;
+	/**
+	 * @return the maximum amount of seconds that an enrollment session may exist
+	 */
+	public int getSessionLifetime() {
+		return session_lifetime;
+	}
+
+	/**
+	 * @return the amount of seconds between two sweeps for expired enrollment sessions, or 0 for no sweeps
+	 */
+	public int getSessionCleanupInterval() {
+		return session_cleanup_interval;
+	}
+
+	/**
+	 * @return the maximum amount of simultaneous enrollment sessions
+	 */
+	public int getMaxSessions() {
+		return max_sessions;
+	}
+
+	/**
+	 * @return the kind of session store to use: "memory" or "file"
+	 */
+	public String getSessionStore() {
+		return session_store;
+	}
+
+	/**
+	 * @return the path of the file in which sessions are stored, if the session store is "file"
+	 */
+	public String getSessionStoreFile() {
+		return session_store_file;
+	}
+
+	/**
+	 * @return the size in megabytes of the session store file
+	 */
+	public int getSessionStoreSize() {
+		return session_store_size;
+	}
+
+	/**
+	 * @return the maximum amount of simultaneous connections to the API server
+	 */
+	public int getApiMaxConnections() {
+		return api_max_connections;
+	}
+
+	/**
+	 * @return the amount of threads handling asynchronous responses from the API server
+	 */
+	public int getApiAsyncThreads() {
+		return api_async_threads;
+	}
+
+	/**
+	 * @return per country (as it occurs in the documents, e.g. "NLD" or "D"), the family name prefixes to use
+	 * instead of the built-in ones
+	 */
+	public Map<String, List<String>> getSurnamePrefixes() {
+		return Collections.unmodifiableMap(surname_prefixes);
+	}
+
+	/**
+	 * @return the amount of threads that convert images to BMP
+	 */
+	public int getImageConverterThreads() {
+		return image_converter_threads;
+	}
+
+	/**
+	 * @return the maximum amount of images waiting to be converted
+	 */
+	public int getImageConverterQueue() {
+		return image_converter_queue;
+	}
+
+	/**
+	 * @return the maximum total size in megabytes of the cached image conversions
+	 */
+	public int getImageCacheSize() {
+		return image_cache_size;
+	}
+
+	/**
+	 * @return the maximum width and height in pixels of images to convert
+	 */
+	public int getImageMaxSize() {
+		return image_max_size;
+	}
+
+	/**
+	 * @return the amount of threads that verify documents
+	 */
+	public int getVerificationThreads() {
+		return verification_threads;
+	}
+
+	/**
+	 * @return the maximum amount of documents waiting to be verified
+	 */
+	public int getVerificationQueue() {
+		return verification_queue;
+	}
+
+	/**
+	 * @return the amount of seconds after which clients should retry when the server is too busy
+	 */
+	public int getVerificationRetryAfter() {
+		return verification_retry_after;
+	}
+
+	/**
+	 * @return per age credential (e.g. "ageLower"), the ages X for which it contains an "overX" attribute
+	 */
+	public Map<String, int[]> getAgeAttributes() {
+		return Collections.unmodifiableMap(age_attributes);
+	}
+
+	/**
+	 * @return the level at which to log: "trace", "debug", "info", "warn" or "error"
+	 */
+	public String getLogLevel() {
+		return log_level;
+	}
+
+	/**
+	 * @return the maximum amount of log records waiting to be written
+	 */
+	public int getLogQueueSize() {
+		return log_queue_size;
+	}
+
+	/**
+	 * @return per category of log events, n such that only one in every n events is logged
+	 */
+	public Map<String, Integer> getLogSampling() {
+		return Collections.unmodifiableMap(log_sampling);
+	}
+
+	/**
+	 * @return the fraction of requests that is traced (of those without a traceparent header, if
+	 * {@link #isTraceClientSampling()})
+	 */
+	public double getTraceSampleRate() {
+		return trace_sample_rate;
+	}
+
+	/**
+	 * @return true if requests with a traceparent header are traced if and only if the client sampled them
+	 */
+	public boolean isTraceClientSampling() {
+		return trace_client_sampling;
+	}
+
+	/**
+	 * @return the bearer token required for /metrics and /admin/*, or an empty string if these are disabled
+	 */
+	public String getAdminToken() {
+		return admin_token == null ? "" : admin_token;
+	}
+
+	/**
+	 * @return the amount of finished tracing spans that are kept in memory
+	 */
+	public int getTraceBufferSize() {
+		return trace_buffer_size;
+	}
+
+	/**
+	 * @return the amount of milliseconds during which issuing session requests are collected into a batch,
+	 * or 0 if batching is disabled
+	 */
+	public int getIssueBatchWindow() {
+		return issue_batch_window;
+	}
+
+	/**
+	 * @return the maximum amount of issuing session requests in a batch
+	 */
+	public int getIssueBatchSize() {
+		return issue_batch_size;
+	}
+
+	/**
+	 * @return the issue URL of the secondary API server, or null if there is none
+	 */
+	public String getSecondaryApiServerIssueUrl() {
+		return secondaryApiServerIssueUrl;
+	}
+
+	/**
+	 * @return the disclosure URL of the secondary API server, or null if there is none
+	 */
+	public String getSecondaryApiServerDisclosureUrl() {
+		return secondaryApiServerDisclosureUrl;
+	}
+
+	/**
+	 * @return the amount of milliseconds to wait for a connection to the API server
+	 */
+	public int getApiConnectTimeout() {
+		return api_connect_timeout;
+	}
+
+	/**
+	 * @return the amount of milliseconds to wait for the API server to respond
+	 */
+	public int getApiReadTimeout() {
+		return api_read_timeout;
+	}
+
+	/**
+	 * @return the maximum amount of times a request that did not reach the API server is retried
+	 */
+	public int getApiRetries() {
+		return api_retries;
+	}
+
+	/**
+	 * @return the maximum amount of milliseconds before the first retry; this doubles for every next retry
+	 */
+	public int getApiRetryBackoff() {
+		return api_retry_backoff;
+	}
+
+	/**
+	 * @return the amount of milliseconds after which a request is also sent to the secondary API server,
+	 * or 0 if requests are never hedged
+	 */
+	public int getApiHedgeDelay() {
+		return api_hedge_delay;
+	}
+
+	/**
+	 * @return the amount of consecutive failures after which requests to the API server are refused for a
+	 * while, or 0 to never refuse requests
+	 */
+	public int getApiCircuitFailures() {
+		return api_circuit_failures;
+	}
+
+	/**
+	 * @return the amount of seconds that requests to the API server are refused after too many failures
+	 */
+	public int getApiCircuitOpenTime() {
+		return api_circuit_open_time;
+	}
+
+	/**
+	 * @param path The path of an endpoint, e.g. "/v2/passport/verify-document"
+	 * @return the maximum size in bytes of the entity of a request to the endpoint
+	 */
+	public int getMaxEntitySize(String path) {
+		Integer limit = entity_size_limits.get(path);
+		return limit != null ? limit : max_entity_size;
+	}
+
+	/**
+	 * @return the amount of disclosure JWTs of /surfverify that are signed in advance
+	 */
+	public int getDisclosureJwtPoolSize() {
+		return disclosure_jwt_pool_size;
+	}
+
+	/**
+	 * @return the age in seconds after which the API server no longer accepts a JWT
+	 */
+	public int getDisclosureJwtMaxAge() {
+		return disclosure_jwt_max_age;
+	}
+
+	/**
+	 * @return the amount of session tokens and nonces that are generated in advance
+	 */
+	public int getTokenPoolSize() {
+		return token_pool_size;
+	}
+
+	/**
+	 * @return the amount of enrollment sessions per second that a single client may start in the long run,
+	 * or 0 for no limit
+	 */
+	public double getStartRateLimit() {
+		return start_rate_limit;
+	}
+
+	/**
+	 * @return the amount of enrollment sessions that a single client may start at once
+	 */
+	public int getStartRateBurst() {
+		return start_rate_burst;
+	}
+
+	/**
+	 * @return the amount of enrollment sessions per second that all clients together may start in the long run,
+	 * or 0 for no limit
+	 */
+	public double getStartGlobalRateLimit() {
+		return start_global_rate_limit;
+	}
+
+	/**
+	 * @return the amount of enrollment sessions that all clients together may start at once
+	 */
+	public int getStartGlobalRateBurst() {
+		return start_global_rate_burst;
+	}
+
+	/**
+	 * @return the header identifying the client for rate limiting, or empty to use the client's IP address
+	 */
+	public String getRateLimitKeyHeader() {
+		return rate_limit_key_header;
+	}
+
+	/**
+	 * @return the amount of proxies in front of this server that append an address to the rate_limit_key_header
+	 */
+	public int getRateLimitTrustedProxies() {
+		return rate_limit_trusted_proxies;
+	}
+
+	/**
+	 * @return the amount of buckets over which clients are spread for rate limiting
+	 */
+	public int getRateLimitBuckets() {
+		return rate_limit_buckets;
+	}
+
+	/**
+	 * @return the CSCA certificates against which document signer certificates are checked, or an empty list
+	 * if none are configured
+	 */
+	public List<X509Certificate> getCscaCertificates() {
+		return cscaCertificates;
+	}
+
+	/**
+	 * @return the maximum amount of seconds that a checked document signer certificate is trusted without
+	 * checking it again
+	 */
+	public int getDocumentSignerCacheTime() {
+		return document_signer_cache_time;
+	}
+
+	/**
+	 * @return the amount of seconds between two checks for changes of config.json, or 0 if disabled
+	 */
+	public int getConfigReloadInterval() {
+		return config_reload_interval;
 	}
 
 	public SignatureAlgorithm getJwtAlgorithm() {
-		return SignatureAlgorithm.RS256;
+		return jwtAlgorithm;
 	}
 
 	public static byte[] getResource(String filename) throws IOException {
@@ -115,31 +693,24 @@ public class MNOConfiguration {
 
 	@Override
 	public String toString() {
-		return GsonUtil.getGson().toJson(this);
+		// This is logged on every (re)load, so leave out the secret
+		JsonObject json = GsonUtil.getGson().toJsonTree(this).getAsJsonObject();
+		if (!getAdminToken().isEmpty())
+			json.addProperty("admin_token", "<hidden>");
+		return GsonUtil.getGson().toJson(json);
 	}
 
     public String getApiServerIssueUrl() {
-        return getApiServerUrl() + "/issue/";
+        return apiServerIssueUrl;
     }
 
 	public String getApiServerDisclosureUrl() {
-		return getApiServerUrl() + "/verification/";
+		return apiServerDisclosureUrl;
 	}
 
     public Key getApiJwtKey() throws KeyManagementException {
-		if (jwtApiKey == null) {
-			try {
-				byte[] bytes = MNOConfiguration.getResource(jwt_api_key);
-				if (bytes == null || bytes.length == 0)
-					throw new KeyManagementException("Could not read public key");
-
-				PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(bytes);
-
-				jwtApiKey = KeyFactory.getInstance("RSA").generatePublic(spec);
-			} catch (IOException|NoSuchAlgorithmException|InvalidKeySpecException e) {
-				throw new KeyManagementException(e);
-			}
-		}
+		if (jwtApiKey == null)
+			throw new KeyManagementException("Could not load public key", jwtApiKeyException);
 
 		return jwtApiKey;
     }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores enrollment sessions in an append-only, memory-mapped file, so that several server processes on
+ * the same host (e.g. behind a load balancer) can share their sessions.
+ *
+ * The file starts with a header containing its capacity, the current end of the log and a generation number,
+ * followed by the records. All processes must use the same capacity (session_store_size), which is checked
+ * when the file is opened. Each record is either a session (encoded using {@link EnrollmentSessionCodec}) or the
+ * removal of a session; the last record for a token wins. Each process keeps an index from tokens to
+ * record offsets that it brings up to date by reading the records appended since its last visit. When
+ * the file is full, the live sessions are compacted to the start of the log and the generation number is
+ * increased, which tells the other processes to rebuild their index.
+ *
+ * All access to the file happens under an exclusive {@link FileLock}. Sessions expire after the configured
+ * lifetime, or when they have not been used for the idle timeout: looking up a session extends the expiry time
+ * of its record in place.
+ */
+public class MappedFileEnrollmentSessions implements EnrollmentSessions {
+	private static final int MAGIC = 0x4d4e4f53; // "MNOS"
+	private static final int FORMAT_VERSION = 2;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int GENERATION_OFFSET = 8;
+	private static final int END_OFFSET = 16;
+	private static final int CAPACITY_OFFSET = 20;
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	// Record layout: int length (of the remainder), byte type, long expiry, short token length, token, payload
+	private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 2;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+
+	private final long idleTimeout;
+	private final long lifetime;
+
+	// Guarded by this; the FileLock only excludes other processes
+	private final HashMap<String, Integer> index = new HashMap<>();
+	private long indexedGeneration = -1;
+	private int indexedEnd = HEADER_SIZE;
+
+	public MappedFileEnrollmentSessions(MNOConfiguration conf) throws IOException {
+		this(new File(conf.getSessionStoreFile()), conf.getSessionStoreSize() * 1024 * 1024,
+				TimeUnit.SECONDS.toMillis(conf.getSessionIdleTimeout()),
+				TimeUnit.SECONDS.toMillis(conf.getSessionLifetime()));
+	}
+
+	public MappedFileEnrollmentSessions(File file, int capacity, long idleTimeout, long lifetime) throws IOException {
+		this.capacity = capacity;
+		this.idleTimeout = idleTimeout;
+		this.lifetime = lifetime;
+
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+		try (FileLock ignored = channel.lock()) {
+			if (buffer.getInt(0) != MAGIC) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, FORMAT_VERSION);
+				buffer.putLong(GENERATION_OFFSET, 0);
+				buffer.putInt(END_OFFSET, HEADER_SIZE);
+				buffer.putInt(CAPACITY_OFFSET, capacity);
+			} else if (buffer.getInt(4) != FORMAT_VERSION) {
+				throw new IOException("Unsupported session store format in " + file);
+			} else if (buffer.getInt(CAPACITY_OFFSET) != capacity) {
+				// Another process would write beyond the end of our mapping, or compact only part of the log
+				throw new IOException("Session store " + file + " has a size of " + buffer.getInt(CAPACITY_OFFSET)
+						+ " bytes instead of " + capacity + "; all servers must use the same session_store_size");
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void addSession(EnrollmentSession session) {
+		put(session);
+	}
+
+	@Override
+	public synchronized EnrollmentSession getSession(String sessionToken) {
+		try (FileLock ignored = channel.lock()) {
+			refreshIndex();
+
+			long now = System.currentTimeMillis();
+			Integer offset = index.get(sessionToken);
+			if (offset == null || isExpired(offset, now))
+				return null;
+
+			int length = buffer.getInt(offset);
+			int payloadOffset = getPayloadOffset(offset);
+			int payloadLength = offset + 4 + length - payloadOffset;
+
+			byte[] payload = new byte[payloadLength];
+			buffer.position(payloadOffset);
+			buffer.get(payload);
+			EnrollmentSession session = EnrollmentSessionCodec.decode(payload, 0, payloadLength);
+
+			// The idle timeout counts from the last use, so move the expiry of the record forward (for all processes)
+			session.touch(now);
+			buffer.putLong(offset + 5, getExpiry(session));
+			return session;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read session store", e);
+		}
+	}
+
+	@Override
+	public synchronized boolean contains(String sessionToken) {
+		try (FileLock ignored = channel.lock()) {
+			refreshIndex();
+			Integer offset = index.get(sessionToken);
+			return offset != null && !isExpired(offset, System.currentTimeMillis());
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read session store", e);
+		}
+	}
+
+	@Override
+	public synchronized boolean replaceState(EnrollmentSession session, EnrollmentSession.State expected,
+	                                         EnrollmentSession.State state) {
+		try (FileLock ignored = channel.lock()) {
+			refreshIndex();
+			Integer offset = index.get(session.getSessionToken());
+			if (offset == null || isExpired(offset, System.currentTimeMillis()))
+				return false;
+
+			// Change the state of the record in place, as appending a new record would need the lock again
+			int stateOffset = EnrollmentSessionCodec.getStateOffset(buffer, getPayloadOffset(offset));
+			if (buffer.get(stateOffset) != expected.ordinal())
+				return false;
+			buffer.put(stateOffset, (byte) state.ordinal());
+			session.setState(state);
+			return true;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write session store", e);
+		}
+	}
+
+	@Override
+	public void update(EnrollmentSession session) {
+		session.touch(System.currentTimeMillis());
+		put(session);
+	}
+
+	@Override
+	public synchronized void remove(EnrollmentSession session) {
+		append(RECORD_REMOVE, 0, session.getSessionToken().getBytes(StandardCharsets.UTF_8), new byte[0]);
+	}
+
+	@Override
+	public synchronized int size() {
+		try (FileLock ignored = channel.lock()) {
+			refreshIndex();
+			return index.size();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read session store", e);
+		}
+	}
+
+	private synchronized void put(EnrollmentSession session) {
+		append(RECORD_PUT, getExpiry(session), session.getSessionToken().getBytes(StandardCharsets.UTF_8),
+				EnrollmentSessionCodec.encode(session));
+	}
+
+	private long getExpiry(EnrollmentSession session) {
+		return Math.min(session.getCreated() + lifetime, session.getLastAccessed() + idleTimeout);
+	}
+
+	private void append(byte type, long expiry, byte[] token, byte[] payload) {
+		int recordSize = RECORD_OVERHEAD + token.length + payload.length;
+
+		try (FileLock ignored = channel.lock()) {
+			refreshIndex();
+
+			int end = buffer.getInt(END_OFFSET);
+			if (end + recordSize > capacity) {
+				compact();
+				end = buffer.getInt(END_OFFSET);
+				if (end + recordSize > capacity)
+					throw new IllegalStateException("Session store is full");
+			}
+
+			buffer.putInt(end, recordSize - 4);
+			buffer.put(end + 4, type);
+			buffer.putLong(end + 5, expiry);
+			buffer.putShort(end + 13, (short) token.length);
+			buffer.position(end + RECORD_OVERHEAD);
+			buffer.put(token);
+			buffer.put(payload);
+
+			// Publish the record to the other processes only after it has been completely written
+			buffer.putInt(END_OFFSET, end + recordSize);
+			refreshIndex();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write session store", e);
+		}
+	}
+
+	/**
+	 * Read the records that were appended (by any process) since the last time, and update the index accordingly.
+	 */
+	private void refreshIndex() {
+		long generation = buffer.getLong(GENERATION_OFFSET);
+		if (generation != indexedGeneration) {
+			index.clear();
+			indexedEnd = HEADER_SIZE;
+			indexedGeneration = generation;
+		}
+
+		int end = buffer.getInt(END_OFFSET);
+		while (indexedEnd < end) {
+			int offset = indexedEnd;
+			String token = readToken(offset);
+			if (buffer.get(offset + 4) == RECORD_PUT)
+				index.put(token, offset);
+			else
+				index.remove(token);
+			indexedEnd = offset + 4 + buffer.getInt(offset);
+		}
+	}
+
+	/**
+	 * Move all live sessions to the start of the log, dropping removed and expired ones.
+	 */
+	private void compact() {
+		long now = System.currentTimeMillis();
+		ArrayList<byte[]> live = new ArrayList<>(index.size());
+		for (Map.Entry<String, Integer> entry : index.entrySet()) {
+			int offset = entry.getValue();
+			if (isExpired(offset, now))
+				continue;
+
+			byte[] record = new byte[4 + buffer.getInt(offset)];
+			buffer.position(offset);
+			buffer.get(record);
+			live.add(record);
+		}
+
+		int end = HEADER_SIZE;
+		buffer.position(end);
+		for (byte[] record : live) {
+			buffer.put(record);
+			end += record.length;
+		}
+
+		buffer.putInt(END_OFFSET, end);
+		buffer.putLong(GENERATION_OFFSET, buffer.getLong(GENERATION_OFFSET) + 1);
+		refreshIndex();
+	}
+
+	private int getPayloadOffset(int offset) {
+		return offset + RECORD_OVERHEAD + buffer.getShort(offset + 13);
+	}
+
+	private boolean isExpired(int offset, long now) {
+		return buffer.getLong(offset + 5) < now;
+	}
+
+	private String readToken(int offset) {
+		byte[] token = new byte[buffer.getShort(offset + 13)];
+		buffer.position(offset + RECORD_OVERHEAD);
+		buffer.get(token);
+		return new String(token, StandardCharsets.UTF_8);
+	}
+}
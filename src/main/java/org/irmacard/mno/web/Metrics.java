@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Registry of the counters, histograms and gauges of the server. These are served in the Prometheus text
+ * format by {@link MetricsResource}. Metrics are registered once, typically in a static field of the class
+ * that updates them, and may have labels, whose values are passed along when updating the metric.
+ */
+public class Metrics {
+	private static final Metrics instance = new Metrics();
+
+	/** Upper bounds, in seconds, of the buckets of latency histograms */
+	private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+	private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+	public static Metrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Register (or return the already registered) counter
+	 */
+	public Counter counter(String name, String help, String... labelNames) {
+		return register(new Counter(name, help, labelNames));
+	}
+
+	/**
+	 * Register (or return the already registered) latency histogram
+	 */
+	public Histogram histogram(String name, String help, String... labelNames) {
+		return register(new Histogram(name, help, LATENCY_BUCKETS, labelNames));
+	}
+
+	/**
+	 * Register a gauge whose value is read from the supplier when the metrics are scraped
+	 */
+	public void gauge(String name, String help, DoubleSupplier value) {
+		register(new Supplied(name, help, "gauge", value));
+	}
+
+	/**
+	 * Register a counter that is maintained elsewhere, and whose value is read from the supplier when the
+	 * metrics are scraped
+	 */
+	public void counter(String name, String help, DoubleSupplier value) {
+		register(new Supplied(name, help, "counter", value));
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(T metric) {
+		Metric existing = metrics.putIfAbsent(metric.name, metric);
+		if (existing == null)
+			return metric;
+		if (existing.getClass() != metric.getClass())
+			throw new IllegalArgumentException("Metric " + metric.name + " already registered with a different type");
+		return (T) existing;
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text exposition format
+	 */
+	public void write(StringBuilder sb) {
+		for (Metric metric : new TreeMap<>(metrics).values()) {
+			sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+			sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+			metric.write(sb);
+		}
+	}
+
+	private static abstract class Metric {
+		final String name;
+		final String help;
+		final String type;
+
+		Metric(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+
+		abstract void write(StringBuilder sb);
+	}
+
+	/**
+	 * A metric that has a child, keeping the actual value(s), per combination of label values
+	 */
+	private static abstract class Labeled<Child> extends Metric {
+		private final String[] labelNames;
+		private final ConcurrentHashMap<List<String>, Child> children = new ConcurrentHashMap<>();
+		private final Function<List<String>, Child> factory;
+
+		Labeled(String name, String help, String type, String[] labelNames, Function<List<String>, Child> factory) {
+			super(name, help, type);
+			this.labelNames = labelNames;
+			this.factory = factory;
+		}
+
+		Child child(String... labelValues) {
+			if (labelValues.length != labelNames.length)
+				throw new IllegalArgumentException("Metric " + name + " has labels " + Arrays.toString(labelNames));
+
+			List<String> key = Arrays.asList(labelValues);
+			Child child = children.get(key);
+			if (child == null)
+				child = children.computeIfAbsent(key, factory);
+			return child;
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			List<Map.Entry<List<String>, Child>> entries = new ArrayList<>(children.entrySet());
+			Collections.sort(entries, (a, b) -> a.getKey().toString().compareTo(b.getKey().toString()));
+			for (Map.Entry<List<String>, Child> entry : entries)
+				write(sb, entry.getKey(), entry.getValue());
+		}
+
+		abstract void write(StringBuilder sb, List<String> labelValues, Child child);
+
+		void writeSample(StringBuilder sb, String suffix, List<String> labelValues,
+		                 String extraName, String extraValue, String value) {
+			sb.append(name).append(suffix);
+			if (labelNames.length > 0 || extraName != null) {
+				sb.append('{');
+				for (int i = 0; i < labelNames.length; i++) {
+					if (i > 0)
+						sb.append(',');
+					appendLabel(sb, labelNames[i], labelValues.get(i));
+				}
+				if (extraName != null) {
+					if (labelNames.length > 0)
+						sb.append(',');
+					appendLabel(sb, extraName, extraValue);
+				}
+				sb.append('}');
+			}
+			sb.append(' ').append(value).append('\n');
+		}
+
+		private static void appendLabel(StringBuilder sb, String name, String value) {
+			sb.append(name).append("=\"");
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' || c == '"')
+					sb.append('\\').append(c);
+				else if (c == '\n')
+					sb.append("\\n");
+				else
+					sb.append(c);
+			}
+			sb.append('"');
+		}
+	}
+
+	public static class Counter extends Labeled<LongAdder> {
+		Counter(String name, String help, String[] labelNames) {
+			super(name, help, "counter", labelNames, key -> new LongAdder());
+		}
+
+		public void inc(String... labelValues) {
+			child(labelValues).increment();
+		}
+
+		public long get(String... labelValues) {
+			return child(labelValues).sum();
+		}
+
+		@Override
+		void write(StringBuilder sb, List<String> labelValues, LongAdder count) {
+			writeSample(sb, "", labelValues, null, null, Long.toString(count.sum()));
+		}
+	}
+
+	public static class Histogram extends Labeled<Histogram.Child> {
+		private final double[] buckets;
+
+		static class Child {
+			final LongAdder[] counts;
+			final LongAdder count = new LongAdder();
+			final DoubleAdder sum = new DoubleAdder();
+
+			Child(int buckets) {
+				counts = new LongAdder[buckets];
+				for (int i = 0; i < buckets; i++)
+					counts[i] = new LongAdder();
+			}
+		}
+
+		Histogram(String name, String help, double[] buckets, String[] labelNames) {
+			super(name, help, "histogram", labelNames, key -> new Child(buckets.length));
+			this.buckets = buckets;
+		}
+
+		/**
+		 * Record a duration
+		 */
+		public void observe(long nanos, String... labelValues) {
+			double seconds = (double) nanos / TimeUnit.SECONDS.toNanos(1);
+			Child child = child(labelValues);
+
+			// Only the first bucket in which the value fits is counted; the buckets are summed when writing
+			for (int i = 0; i < buckets.length; i++) {
+				if (seconds <= buckets[i]) {
+					child.counts[i].increment();
+					break;
+				}
+			}
+			child.count.increment();
+			child.sum.add(seconds);
+		}
+
+		public long getCount(String... labelValues) {
+			return child(labelValues).count.sum();
+		}
+
+		@Override
+		void write(StringBuilder sb, List<String> labelValues, Child child) {
+			long count = child.count.sum();
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += child.counts[i].sum();
+				writeSample(sb, "_bucket", labelValues, "le", Double.toString(buckets[i]), Long.toString(cumulative));
+			}
+			writeSample(sb, "_bucket", labelValues, "le", "+Inf", Long.toString(Math.max(count, cumulative)));
+			writeSample(sb, "_sum", labelValues, null, null, Double.toString(child.sum.sum()));
+			writeSample(sb, "_count", labelValues, null, null, Long.toString(count));
+		}
+	}
+
+	private static class Supplied extends Metric {
+		private final DoubleSupplier value;
+
+		Supplied(String name, String help, String type, DoubleSupplier value) {
+			super(name, help, type);
+			this.value = value;
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			double v = value.getAsDouble();
+			sb.append(name).append(' ');
+			if (v == Math.rint(v) && !Double.isInfinite(v))
+				sb.append((long) v);
+			else
+				sb.append(v);
+			sb.append('\n');
+		}
+	}
+}
@@ -3,29 +3,46 @@ package org.irmacard.mno.web;
 import com.google.gson.Gson;
 import org.irmacard.api.common.AttributeDisjunction;
 import org.irmacard.api.common.AttributeDisjunctionList;
-import org.irmacard.api.common.ClientQr;
 import org.irmacard.credentials.info.AttributeIdentifier;
 import org.irmacard.credentials.info.CredentialIdentifier;
 import org.irmacard.credentials.info.InfoException;
 import org.irmacard.mno.common.*;
 import org.irmacard.mno.common.util.GsonUtil;
+import org.irmacard.mno.web.exceptions.InputInvalidException;
 import org.jmrtd.lds.icao.MRZInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.*;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyManagementException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.*;
-
-import static java.util.stream.Collectors.joining;
+import java.util.Base64;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Path("v2/passport")
 public class PassportEnrollmentResource extends GenericEnrollmentResource<PassportDataMessage> {
+	private static final Logger logger = LoggerFactory.getLogger(PassportEnrollmentResource.class);
 	protected static Gson gson = GsonUtil.getGson();
 
+	static final String IMAGE_BMP = "image/bmp";
+
 	@GET
 	@Path("/start")
 	@Produces(MediaType.APPLICATION_JSON)
@@ -37,32 +54,39 @@ public class PassportEnrollmentResource extends GenericEnrollmentResource<Passpo
 	@GET
 	@Path("/surfverify")
 	@Produces(MediaType.APPLICATION_JSON)
-	public DisclosureSessionMessage verifySurf() {
+	public void verifySurf(@Suspended AsyncResponse asyncResponse) {
 		//TODO: change to post, to first verify sessionnumber?
-		AttributeDisjunctionList list = new AttributeDisjunctionList(4);
-		list.add(new AttributeDisjunction("First name", getAttributeIdentifier("firstname")));
-		list.add(new AttributeDisjunction("Last name", getAttributeIdentifier("familyname")));
-		list.add(new AttributeDisjunction("Radboud number", getAttributeIdentifier("id")));
-		list.add(new AttributeDisjunction("E-mail address", getAttributeIdentifier("email")));
 		try {
-			ClientQr qr = ApiClient.createDisclosureSession(
-					list,
-					"testsp",
-					"testsp",
+			String jwt = SurfRequest.template.take(
 					MNOConfiguration.getInstance().getJwtAlgorithm(),
 					MNOConfiguration.getInstance().getJwtPrivateKey());
-			DisclosureSessionMessage msg = new DisclosureSessionMessage(qr,
-					qr.getUrl().replace("http","ws").replace("verification","status"),
-					qr.getUrl().concat("/getproof"));
-			return msg;
+			resume(asyncResponse, ApiClient.postDisclosureJwt(jwt, Span.NOOP)
+					.thenApply(qr -> new DisclosureSessionMessage(qr,
+							qr.getUrl().replace("http","ws").replace("verification","status"),
+							qr.getUrl().concat("/getproof"))));
 		} catch (KeyManagementException e) {
-			System.out.println("ERROR: getJWTPrivateKey failed");
-			e.printStackTrace();
+			logger.error("event=private_key_unavailable", e);
 			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
 		}
 	}
 
-	private AttributeIdentifier getAttributeIdentifier(String attributeName) {
+	/**
+	 * The disclosure request of /surfverify, created when it is first used
+	 */
+	private static class SurfRequest {
+		static final DisclosureRequestTemplate template;
+
+		static {
+			AttributeDisjunctionList list = new AttributeDisjunctionList(4);
+			list.add(new AttributeDisjunction("First name", getAttributeIdentifier("firstname")));
+			list.add(new AttributeDisjunction("Last name", getAttributeIdentifier("familyname")));
+			list.add(new AttributeDisjunction("Radboud number", getAttributeIdentifier("id")));
+			list.add(new AttributeDisjunction("E-mail address", getAttributeIdentifier("email")));
+			template = new DisclosureRequestTemplate(list, "testsp", "testsp");
+		}
+	}
+
+	private static AttributeIdentifier getAttributeIdentifier(String attributeName) {
 		return new AttributeIdentifier(
 				new CredentialIdentifier(
 						"pbdf",
@@ -76,69 +100,121 @@ public class PassportEnrollmentResource extends GenericEnrollmentResource<Passpo
 	@Path("/verify-documents")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public ValidationResultMessage verifyDocuments(Map<Integer,String> dataMap){
-		List<AbstractDocumentData> data = retreiveDataFromJSON(dataMap);
-		for (AbstractDocumentData datum: data){
-			ValidationResult result = datum.validate();
-			if (!result.isValid()){
-				return new ValidationResultMessage(result);
-			}
+	public void verifyDocuments(Map<Integer,String> dataMap, @Suspended AsyncResponse asyncResponse){
+		// Each document is deserialized and validated independently on the verification executor. As soon as
+		// one of them turns out to be invalid, or its validation fails, we respond, and the validations that did
+		// not start yet are skipped.
+		final CompletableFuture<ValidationResultMessage> response = new CompletableFuture<>();
+		final AtomicBoolean invalid = new AtomicBoolean();
+		final List<CompletableFuture<AbstractDocumentData>> validations = new ArrayList<>(dataMap.size());
+
+		for (final Map.Entry<Integer,String> documentData : dataMap.entrySet()) {
+			validations.add(VerificationExecutor.getInstance().submit(() -> {
+				if (invalid.get())
+					throw new CancellationException();
+				AbstractDocumentData datum = retreiveDataFromJSON(documentData);
+				if (datum == null || invalid.get())
+					return datum;
+
+				ValidationResult result = datum.validate();
+				if (!result.isValid() && invalid.compareAndSet(false, true))
+					response.complete(new ValidationResultMessage(result));
+				return datum;
+			}).toCompletableFuture());
+		}
+
+		// Likewise, respond with the first exception, after marking the request invalid so that the remaining
+		// validations are skipped (skipped validations throw a CancellationException, but only once it is set)
+		for (CompletableFuture<AbstractDocumentData> validation : validations) {
+			validation.whenComplete((datum, ex) -> {
+				if (ex != null && invalid.compareAndSet(false, true))
+					response.completeExceptionally(ex);
+			});
 		}
-		//if we get here, then all data has been validated, so we start issuing
-		return retreiveIssuingJWT(data);
-	//	return new ValidationResultMessage(new ValidationResult(ValidationResult.Result.VALID));
+
+		CompletableFuture.allOf(validations.toArray(new CompletableFuture<?>[validations.size()]))
+				.whenComplete((ignored, ex) -> {
+					if (response.isDone())
+						return;
+					if (ex != null) {
+						response.completeExceptionally(ex);
+						return;
+					}
+
+					//if we get here, then all data has been validated, so we start issuing
+					List<AbstractDocumentData> data = new ArrayList<>(validations.size());
+					for (CompletableFuture<AbstractDocumentData> validation : validations)
+						if (validation.join() != null)
+							data.add(validation.join());
+					try {
+						retreiveIssuingJWT(data).whenComplete((msg, issuingEx) -> {
+							if (issuingEx != null)
+								response.completeExceptionally(issuingEx);
+							else
+								response.complete(msg);
+						});
+					} catch (RuntimeException e) {
+						response.completeExceptionally(e);
+					}
+				});
+
+		response.whenComplete((msg, ex) -> {
+			for (CompletableFuture<AbstractDocumentData> validation : validations)
+				validation.cancel(false);
+		});
+
+		resume(asyncResponse, response);
 	}
 
-	private ValidationResultMessage retreiveIssuingJWT(List<AbstractDocumentData> data){
-		ValidationResultMessage msg = new ValidationResultMessage(new ValidationResult(ValidationResult.Result.VALID));
+	private CompletionStage<ValidationResultMessage> retreiveIssuingJWT(List<AbstractDocumentData> data){
+		final ValidationResultMessage msg = new ValidationResultMessage(new ValidationResult(ValidationResult.Result.VALID));
 		HashMap<CredentialIdentifier, HashMap<String,String>> toIssue = new HashMap<>();
 		for (AbstractDocumentData datum: data){
 			toIssue.put(datum.getCredentialIdentifier(),datum.getIssuingJWT());
 		}
-		System.out.println("Created issuing list: " + toIssue.toString());
+		logger.debug("event=issuing_list credentials={}", Logging.lazy(toIssue::toString));
+		MNOConfiguration conf = MNOConfiguration.getInstance();
 		try {
-			msg.setIssueQr(ApiClient.createIssuingSession(toIssue,
-					MNOConfiguration.getInstance().getApiName(),
-					MNOConfiguration.getInstance().getJwtAlgorithm(),
-					MNOConfiguration.getInstance().getJwtPrivateKey()));
-			System.out.println("set the QR?");
+			// The private key is only needed (and present) if issuing JWTs are signed
+			return ApiClient.createIssuingSessionAsync(toIssue,
+					conf.getApiName(),
+					conf.getJwtAlgorithm(),
+					conf.shouldSignJwt() ? conf.getJwtPrivateKey() : null)
+					.thenApply(qr -> {
+						msg.setIssueQr(qr);
+						logger.debug("event=issuing_response message={}", Logging.lazy(() -> gson.toJson(msg)));
+						return msg;
+					});
 		} catch (KeyManagementException e) {
-			System.out.println("ERROR: getJWTPrivateKey failed");
-			e.printStackTrace();
+			logger.error("event=private_key_unavailable", e);
 			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
 		}
-		System.out.println("Msg to send: "+ gson.toJson(msg));
-		return msg;
 	}
 
-	private List<AbstractDocumentData> retreiveDataFromJSON(Map<Integer,String> dataMap){
-		List<AbstractDocumentData> data = new ArrayList<>();
-		for (Map.Entry<Integer,String> documentData : dataMap.entrySet()){
-			System.out.println("Object found: "+documentData.getValue());
-			switch (documentData.getKey()){
-				case AbstractDocumentData.RADBOUD:
-					RadboudData rd = gson.fromJson(documentData.getValue(), RadboudData.class);
-					try {
-						rd.setJwtSigningKey(MNOConfiguration.getInstance().getApiJwtKey());
-					} catch (KeyManagementException e){
-						System.out.println("unable to set API JWT key for Raboud credential");
-					}
-					data.add(rd);
-					break;
-				case AbstractDocumentData.PASSPORT:
-					PassportData pd = gson.fromJson(documentData.getValue(), PassportData.class);
-					data.add(pd);
-					break;
-				case AbstractDocumentData.EDL:
-					EDlData edd = gson.fromJson(documentData.getValue(),EDlData.class);
-					data.add(edd);
-					break;
-				default:
-					System.out.println("Error, encountered unknown object, type: "+documentData.getKey()+" objString: "+documentData.getValue());
-					break;
-			}
+	/**
+	 * Deserialize a single document of a verify-documents request
+	 * @return The document, or null if its type is unknown
+	 */
+	private AbstractDocumentData retreiveDataFromJSON(final Map.Entry<Integer,String> documentData){
+		if (logger.isDebugEnabled() && Logging.sample("documents"))
+			logger.debug("event=document type={} document={}", documentData.getKey(), Logging.lazy(documentData::getValue));
+		switch (documentData.getKey()){
+			case AbstractDocumentData.RADBOUD:
+				RadboudData rd = gson.fromJson(documentData.getValue(), RadboudData.class);
+				try {
+					rd.setJwtSigningKey(MNOConfiguration.getInstance().getApiJwtKey());
+				} catch (KeyManagementException e){
+					logger.warn("event=api_key_unavailable credential=radboud", e);
+				}
+				return rd;
+			case AbstractDocumentData.PASSPORT:
+				return gson.fromJson(documentData.getValue(), PassportData.class);
+			case AbstractDocumentData.EDL:
+				return gson.fromJson(documentData.getValue(),EDlData.class);
+			default:
+				logger.warn("event=document_type_unknown type={}", documentData.getKey());
+				return null;
 		}
-		return data;
 	}
 
 	@POST
@@ -146,9 +222,23 @@ public class PassportEnrollmentResource extends GenericEnrollmentResource<Passpo
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
-	public PassportVerificationResultMessage verifyDocument(PassportDataMessage documentData)
-			throws InfoException {
-		return super.verifyDocument(documentData);
+	public void verifyDocument(PassportDataMessage documentData, @Suspended AsyncResponse asyncResponse) {
+		super.verifyDocument(documentData, asyncResponse);
+	}
+
+	/**
+	 * Active authentication uses the key in DG15, and the attributes come from DG1, so these must be hashed
+	 */
+	@Override
+	protected DocumentVerifier.Document getVerifiableDocument(PassportDataMessage msg) {
+		if (msg.getSodFile() == null || msg.getDg1File() == null || msg.getDg15File() == null)
+			return null;
+
+		Map<Integer, byte[]> dataGroups = new HashMap<>();
+		dataGroups.put(1, msg.getDg1File().getEncoded());
+		dataGroups.put(15, msg.getDg15File().getEncoded());
+		return new DocumentVerifier.Document(msg.getSodFile(), dataGroups,
+				msg.getDg15File().getPublicKey(), msg.getResponse());
 	}
 
 	@Override
@@ -162,27 +252,20 @@ public class PassportEnrollmentResource extends GenericEnrollmentResource<Passpo
 			throw new InfoException("Cannot retrieve MRZ info");
 		}
 
-		SimpleDateFormat bacDateFormat = new SimpleDateFormat("yyMMdd");
-		SimpleDateFormat hrDateFormat = new SimpleDateFormat("MMM d, y"); // Matches Android's default date format
-		Date dob;
-		Date expiry;
+		LocalDate dob;
+		LocalDate expiry;
 
 		try {
-			dob = bacDateFormat.parse(mrz.getDateOfBirth());
-			expiry = bacDateFormat.parse(mrz.getDateOfExpiry());
-		}  catch (ParseException e) {
-			e.printStackTrace();
+			dob = DocumentDates.parseMrzDateOfBirth(mrz.getDateOfBirth());
+			expiry = DocumentDates.parseMrzDateOfExpiry(mrz.getDateOfExpiry());
+		}  catch (DateTimeException e) {
 			throw new InfoException("Failed to parse MRZ", e);
 		}
 
-		int[] lowAges = {12,16,18,21};
-		credentials.put(new CredentialIdentifier(SCHEME_MANAGER, ISSUER, "ageLower"), ageAttributes(lowAges, dob));
-
-		int[] highAges = {50, 60, 65, 75};
-		credentials.put(new CredentialIdentifier(SCHEME_MANAGER, ISSUER, "ageHigher"), ageAttributes(highAges, dob));
+		credentials.putAll(ageCredentials(dob));
 
 		HashMap<String,String> nameAttributes = new HashMap<>();
-		String[] nameParts = splitFamilyName(mrz.getPrimaryIdentifier());
+		String[] nameParts = splitFamilyName(mrz.getPrimaryIdentifier(), mrz.getNationality());
 		String firstnames = toTitleCase(joinStrings(mrz.getSecondaryIdentifierComponents()));
 		// The first of the first names is not always the person's usual name ("roepnaam"). In fact, the person's
 		// usual name need not even be in his list of first names at all. But given only the MRZ, there is no way of
@@ -198,7 +281,7 @@ public class PassportEnrollmentResource extends GenericEnrollmentResource<Passpo
 
 		HashMap<String, String> idDocumentAttributes = new HashMap<String, String>();
 		idDocumentAttributes.put("number", mrz.getDocumentNumber());
-		idDocumentAttributes.put("expires", hrDateFormat.format(expiry));
+		idDocumentAttributes.put("expires", DocumentDates.format(expiry));
 		idDocumentAttributes.put("nationality", mrz.getNationality());
 		if (mrz.getDocumentType() == MRZInfo.DOC_TYPE_ID1)
 			idDocumentAttributes.put("type", "ID card");
@@ -211,26 +294,84 @@ public class PassportEnrollmentResource extends GenericEnrollmentResource<Passpo
 		return credentials;
 	}
 
+	/**
+	 * Convert a Base64 encoded passport photo to BMP. The BMP is returned Base64 encoded, or as is if the client
+	 * prefers image/bmp over text/plain in its Accept header. The Base64 encoding is done while writing the
+	 * response, so that the BMP is never held in memory as a string.
+	 */
 	@POST
 	@Path("/image-converter")
 	@Consumes(MediaType.TEXT_PLAIN)
-	@Produces(MediaType.TEXT_PLAIN)
-	public String convertToBmp(String otherImageType) {
-		try {
-			// GraphicsMagick (gm) tool needed to convert images
-			ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", "echo " + otherImageType + " | base64 --decode | gm convert - bmp:- | base64");
-			Process p = pb.start();
-			BufferedReader ir = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			String bmp =  ir.lines().collect(joining());
-			if (bmp.length() > 1000) {
-				// Check whether result is large enough to be an image
-				return bmp;
-			}
+	@Produces({MediaType.TEXT_PLAIN, IMAGE_BMP})
+	public void convertToBmp(InputStream otherImageType, @Context HttpHeaders httpHeaders,
+	                         @Suspended AsyncResponse asyncResponse) {
+		byte[] image;
+		try (InputStream in = Base64.getMimeDecoder().wrap(otherImageType)) {
+			image = readFully(in);
+		} catch (IOException|IllegalArgumentException e) {
+			throw new InputInvalidException("Image is not Base64 encoded");
 		}
-		catch(IOException e) {
-			e.printStackTrace();
-			throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+		if (image.length == 0)
+			throw new InputInvalidException("Image is not Base64 encoded");
+
+		final boolean binary = prefersBinary(httpHeaders);
+		resume(asyncResponse, ImageConverter.getInstance().toBmp(image)
+				.thenApply(bmp -> binary ? bmpResponse(bmp) : base64Response(bmp)));
+	}
+
+	/**
+	 * @return true if the first of the acceptable media types that we can produce is image/bmp, so that
+	 * clients that accept anything keep getting Base64
+	 */
+	static boolean prefersBinary(HttpHeaders httpHeaders) {
+		if (httpHeaders == null)
+			return false;
+
+		MediaType bmp = MediaType.valueOf(IMAGE_BMP);
+		for (MediaType type : httpHeaders.getAcceptableMediaTypes()) {
+			if (type.isCompatible(MediaType.TEXT_PLAIN_TYPE))
+				return false;
+			if (type.isCompatible(bmp))
+				return true;
 		}
-		throw new WebApplicationException("Image manipulation of given image type is not supported", Response.Status.NOT_IMPLEMENTED);
+		return false;
+	}
+
+	private static Response bmpResponse(byte[] bmp) {
+		return Response.ok(bmp, IMAGE_BMP)
+				.header(HttpHeaders.CONTENT_LENGTH, bmp.length)
+				.build();
+	}
+
+	static Response base64Response(final byte[] bmp) {
+		StreamingOutput entity = output -> {
+			// Closing the encoder writes the final (padded) quantum, but should not close the response stream
+			try (OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(output) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			})) {
+				base64.write(bmp);
+			}
+		};
+
+		return Response.ok(entity, MediaType.TEXT_PLAIN_TYPE)
+				.header(HttpHeaders.CONTENT_LENGTH, (bmp.length + 2) / 3 * 4)
+				.build();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
 	}
 }
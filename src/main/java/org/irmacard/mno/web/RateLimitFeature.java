@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.web.exceptions.TooManyRequestsException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Path;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.FeatureContext;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which enrollment sessions can be started, per client and in total, so that a misbehaving
+ * client cannot fill the session store. Clients are identified by the header configured as
+ * rate_limit_key_header (e.g. X-Forwarded-For behind a reverse proxy), or otherwise by their IP address.
+ * Since clients can send the header themselves, only the address added by the last of the
+ * rate_limit_trusted_proxies proxies is used. Requests over the limit are refused with 429 Too Many Requests
+ * and a Retry-After header. The limits are read from the {@link MNOConfiguration} on every request.
+ */
+public class RateLimitFeature implements DynamicFeature {
+	private static final Metrics.Counter limited = Metrics.getInstance().counter("mno_rate_limited_total",
+			"Requests refused because a client (client) or all clients together (global) exceeded the rate limit",
+			"limit");
+
+	private static final RateLimiter limiter = new RateLimiter(MNOConfiguration.getInstance().getRateLimitBuckets());
+
+	@Override
+	public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+		Path methodPath = resourceInfo.getResourceMethod().getAnnotation(Path.class);
+		if (methodPath != null && methodPath.value().replace("/", "").equals("start"))
+			context.register(new Filter());
+	}
+
+	static class Filter implements ContainerRequestFilter {
+		// A proxy to the current request; null if not running in a servlet container
+		@Context
+		private HttpServletRequest servletRequest;
+
+		@Override
+		public void filter(ContainerRequestContext request) {
+			MNOConfiguration conf = MNOConfiguration.getInstance();
+			long now = RateLimiter.now();
+
+			long wait = limiter.acquire(getKey(request, conf), conf.getStartRateLimit(), conf.getStartRateBurst(), now);
+			if (wait > 0) {
+				limited.inc("client");
+				throw new TooManyRequestsException(toSeconds(wait));
+			}
+
+			wait = limiter.acquireGlobal(conf.getStartGlobalRateLimit(), conf.getStartGlobalRateBurst(), now);
+			if (wait > 0) {
+				limited.inc("global");
+				throw new TooManyRequestsException(toSeconds(wait));
+			}
+		}
+
+		private String getKey(ContainerRequestContext request, MNOConfiguration conf) {
+			String header = conf.getRateLimitKeyHeader();
+			if (header != null && !header.isEmpty()) {
+				String value = request.getHeaderString(header);
+				if (value != null && !value.isEmpty())
+					return getClientAddress(value, conf.getRateLimitTrustedProxies());
+			}
+
+			String address = servletRequest == null ? null : servletRequest.getRemoteAddr();
+			return address == null ? "" : address;
+		}
+
+		/**
+		 * @param value A comma-separated list of addresses, to which each proxy appended the address it
+		 *              received the request from (as in X-Forwarded-For)
+		 * @param trustedProxies The amount of proxies in front of this server
+		 * @return the address added by the first trusted proxy, i.e. the one that received the request from
+		 * the client; addresses to the left of it may have been made up by the client
+		 */
+		static String getClientAddress(String value, int trustedProxies) {
+			String[] addresses = value.split(",");
+			return addresses[Math.max(0, addresses.length - Math.max(1, trustedProxies))].trim();
+		}
+
+		private static long toSeconds(long nanos) {
+			return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token buckets that limit the rate of requests per client and in total. Each bucket is a single
+ * {@code long} holding the time at which it will be full again (the "theoretical arrival time" of the generic
+ * cell rate algorithm), updated with a compare-and-set, so that checking a request takes no locks and no
+ * allocation. Clients are assigned to one of a fixed number of buckets by the hash of their key; clients
+ * whose keys collide share a bucket, which keeps the memory use constant no matter how many clients there are.
+ */
+class RateLimiter {
+	/** Offset of the clock, so that a bucket that was never used (0) is always full */
+	private static final long CLOCK_OFFSET = TimeUnit.DAYS.toNanos(1) - System.nanoTime();
+
+	private final AtomicLongArray buckets;
+	private final AtomicLongArray global = new AtomicLongArray(1);
+	private final int mask;
+
+	/**
+	 * @param buckets Amount of per-client buckets; rounded up to a power of two
+	 */
+	RateLimiter(int buckets) {
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		this.buckets = new AtomicLongArray(size);
+		this.mask = size - 1;
+	}
+
+	static long now() {
+		return System.nanoTime() + CLOCK_OFFSET;
+	}
+
+	/**
+	 * Take a token from the bucket of the client
+	 * @param rate Tokens per second, or 0 for no limit
+	 * @param burst Size of the bucket
+	 * @return 0 if the request may proceed, otherwise the amount of nanoseconds until a token is available
+	 */
+	long acquire(String key, double rate, int burst, long now) {
+		return acquire(buckets, index(key), rate, burst, now);
+	}
+
+	/**
+	 * Take a token from the bucket shared by all clients
+	 * @see #acquire(String, double, int, long)
+	 */
+	long acquireGlobal(double rate, int burst, long now) {
+		return acquire(global, 0, rate, burst, now);
+	}
+
+	private static long acquire(AtomicLongArray buckets, int index, double rate, int burst, long now) {
+		if (rate <= 0)
+			return 0;
+
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long tolerance = interval * (Math.max(1, burst) - 1);
+		while (true) {
+			long full = buckets.get(index);
+			long start = Math.max(full, now);
+			long wait = start - now - tolerance;
+			if (wait > 0)
+				return wait;
+			if (buckets.compareAndSet(index, full, start + interval))
+				return 0;
+		}
+	}
+
+	private int index(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & mask;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import javax.ws.rs.Path;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+
+/**
+ * Counts the requests to, and measures the latency of, each of the endpoints of the enrollment resources.
+ * For asynchronous endpoints the latency includes the time until the response is resumed.
+ */
+public class RequestMetricsFeature implements DynamicFeature {
+	private static final Metrics.Counter requests = Metrics.getInstance().counter("mno_requests_total",
+			"Amount of handled requests, per endpoint and HTTP status", "path", "status");
+	private static final Metrics.Histogram latency = Metrics.getInstance().histogram("mno_request_duration_seconds",
+			"Time between receiving a request and sending the response, per endpoint", "path");
+
+	@Override
+	public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+		if (resourceInfo.getResourceClass() == MetricsResource.class)
+			return;
+
+		Path resourcePath = resourceInfo.getResourceClass().getAnnotation(Path.class);
+		Path methodPath = resourceInfo.getResourceMethod().getAnnotation(Path.class);
+		if (resourcePath == null || methodPath == null)
+			return;
+
+		context.register(new Filter(join(resourcePath.value(), methodPath.value())));
+	}
+
+	static String join(String resourcePath, String methodPath) {
+		String path = "/" + resourcePath + "/" + methodPath;
+		return path.replaceAll("/+", "/");
+	}
+
+	private static class Filter implements ContainerRequestFilter, ContainerResponseFilter {
+		private static final String START = RequestMetricsFeature.class.getName() + ".start";
+
+		private final String path;
+
+		Filter(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public void filter(ContainerRequestContext request) {
+			request.setProperty(START, System.nanoTime());
+		}
+
+		@Override
+		public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+			Object start = request.getProperty(START);
+			if (start instanceof Long)
+				latency.observe(System.nanoTime() - (Long) start, path);
+			requests.inc(path, Integer.toString(response.getStatus()));
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed phase of handling a request, part of a trace. Spans are started with {@link Tracing#start(String, String)}
+ * or {@link #child(String)}, and recorded by {@link Tracing} when {@link #end()} is called. If the trace is not
+ * sampled, {@link #NOOP} is used instead, which records nothing.
+ */
+public class Span {
+	/** Span of a trace that is not sampled */
+	public static final Span NOOP = new Span(null, null, null);
+
+	private final String traceId;
+	private final String spanId;
+	private final String parentId;
+	private final String name;
+	private final long start; // microseconds since the epoch
+	private long duration; // microseconds
+	private LinkedHashMap<String, String> tags;
+
+	private final transient long startNanos;
+
+	Span(String traceId, String parentId, String name) {
+		this.traceId = traceId;
+		this.parentId = parentId;
+		this.name = name;
+		if (traceId == null) {
+			spanId = null;
+			start = startNanos = 0;
+		} else {
+			spanId = randomHex(1);
+			start = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+			startNanos = System.nanoTime();
+		}
+	}
+
+	static String randomHex(int longs) {
+		StringBuilder sb = new StringBuilder(16 * longs);
+		for (int i = 0; i < longs; i++) {
+			String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+			for (int j = hex.length(); j < 16; j++)
+				sb.append('0');
+			sb.append(hex);
+		}
+		return sb.toString();
+	}
+
+	public boolean isSampled() {
+		return this != NOOP;
+	}
+
+	/**
+	 * Start a span for a phase within this one
+	 */
+	public Span child(String name) {
+		if (this == NOOP)
+			return NOOP;
+		return new Span(traceId, spanId, name);
+	}
+
+	/**
+	 * Annotate this span with a key and value
+	 */
+	public synchronized Span tag(String key, Object value) {
+		if (this == NOOP)
+			return this;
+		if (tags == null)
+			tags = new LinkedHashMap<>(4);
+		tags.put(key, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * Stop timing this span and record it
+	 */
+	public void end() {
+		if (this == NOOP)
+			return;
+		synchronized (this) {
+			if (duration != 0)
+				return;
+			duration = Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+		}
+		Tracing.record(this);
+	}
+
+	/**
+	 * @return the value of the W3C traceparent header to send to other services, so that their spans are
+	 * part of this trace
+	 */
+	public String getTraceparent() {
+		return "00-" + traceId + "-" + spanId + "-01";
+	}
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getParentId() {
+		return parentId;
+	}
+
+	public synchronized long getDuration() {
+		return duration;
+	}
+}
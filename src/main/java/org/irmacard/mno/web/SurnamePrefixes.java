@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of family name prefixes ("tussenvoegsels"), compiled into a trie so that the longest prefix of a
+ * name can be found in a single pass over the name. Which prefixes are used depends on the country of the
+ * document holder: the nationality in the MRZ of passports and identity cards, or the country that issued a
+ * driving licence. The built-in tables can be replaced per country using the surname_prefixes option of the
+ * {@link MNOConfiguration}.
+ */
+public class SurnamePrefixes {
+	// Taken from https://nl.wikipedia.org/wiki/Tussenvoegsel
+	private static final String[] DUTCH = {"af", "aan", "bij", "de", "den", "der", "d'", "het", "'t", "in", "onder", "op", "over", "'s", "te", "ten", "ter", "tot", "uit", "uijt", "van", "vanden", "ver", "voor", "aan de", "aan den", "aan der", "aan het", "aan 't", "bij de", "bij den", "bij het", "bij 't", "boven d'", "de die", "de die le", "de l'", "de la", "de las", "de le", "de van der", "in de", "in den", "in der", "in het", "in 't", "onder de", "onder den", "onder het", "onder 't", "over de", "over den", "over het", "over 't", "op de", "op den", "op der", "op gen", "op het", "op 't", "op ten", "van de", "van de l'", "van den", "van der", "van gen", "van het", "van la", "van 't", "van ter", "van van de", "uit de", "uit den", "uit het", "uit 't", "uit te de", "uit ten", "uijt de", "uijt den", "uijt het", "uijt 't", "uijt te de", "uijt ten", "voor de", "voor den", "voor in 't"};
+
+	// Flemish and French prefixes
+	private static final String[] BELGIAN = {"de", "den", "der", "d'", "du", "des", "del", "della", "la", "le", "l'", "'t", "t'", "te", "ten", "ter", "van", "vande", "vanden", "vander", "ver", "de la", "de le", "de l'", "van de", "van den", "van der", "van 't", "van ter", "op de", "op den", "in 't", "in de"};
+
+	private static final String[] GERMAN = {"am", "an", "auf", "aus", "de", "im", "van", "vom", "von", "zu", "zum", "zur", "auf der", "aus dem", "aus der", "van der", "von dem", "von den", "von der", "von und zu", "zu dem", "zu der"};
+
+	private static final Map<String, String[]> BUILT_IN = new HashMap<>();
+	static {
+		// The MRZ uses ISO 3166 alpha-3 codes, except that the nationality of Germans is "D"
+		BUILT_IN.put("NLD", DUTCH);
+		BUILT_IN.put("NL", DUTCH);
+		BUILT_IN.put("BEL", BELGIAN);
+		BUILT_IN.put("BE", BELGIAN);
+		BUILT_IN.put("DEU", GERMAN);
+		BUILT_IN.put("DE", GERMAN);
+		BUILT_IN.put("D", GERMAN);
+	}
+
+	private static final SurnamePrefixes DEFAULT = new SurnamePrefixes(Arrays.asList(DUTCH));
+	private static final ConcurrentHashMap<String, SurnamePrefixes> byCountry = new ConcurrentHashMap<>();
+	private static volatile MNOConfiguration loadedFrom;
+
+	private final Node root = new Node();
+
+	public SurnamePrefixes(Collection<String> prefixes) {
+		for (String prefix : prefixes)
+			add(prefix.toLowerCase());
+	}
+
+	/**
+	 * @return the (Dutch) prefixes that are used when the country of a document is unknown
+	 */
+	public static SurnamePrefixes getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param country the nationality of the holder or the issuing country of the document, as found in the
+	 *                document (e.g. "NLD" or "D")
+	 * @return the prefixes for the specified country, or the default ones if there are none for this country
+	 */
+	public static SurnamePrefixes forCountry(String country) {
+		if (country == null)
+			return DEFAULT;
+
+		// Forget the configured prefixes when the configuration has been reloaded
+		MNOConfiguration conf = MNOConfiguration.getInstance();
+		if (conf != loadedFrom) {
+			byCountry.clear();
+			loadedFrom = conf;
+		}
+
+		SurnamePrefixes prefixes = byCountry.get(country);
+		if (prefixes == null) {
+			prefixes = load(conf, country);
+			byCountry.putIfAbsent(country, prefixes);
+		}
+
+		return prefixes;
+	}
+
+	private static SurnamePrefixes load(MNOConfiguration conf, String country) {
+		Map<String, List<String>> configured = conf.getSurnamePrefixes();
+		if (configured.containsKey(country))
+			return new SurnamePrefixes(configured.get(country));
+		if (BUILT_IN.containsKey(country))
+			return new SurnamePrefixes(Arrays.asList(BUILT_IN.get(country)));
+		return DEFAULT;
+	}
+
+	/**
+	 * Split the family name in into a prefix and a proper part, using the longest matching prefix.
+	 * @param name The name to split
+	 * @return An array in which the first element is the prefix, or " " if none found, and the second is the
+	 * remainder of the name. Both are lower case.
+	 */
+	public String[] split(String name) {
+		name = name.toLowerCase();
+
+		String prefix = null;
+		Node node = root;
+		for (int i = 0; i < name.length() && node != null; i++) {
+			char c = name.charAt(i);
+			// A prefix only matches if it is followed by a space
+			if (c == ' ' && node.prefix != null)
+				prefix = node.prefix;
+			node = node.child(c);
+		}
+
+		if (prefix == null)
+			return new String[] {" ", name};
+		return new String[] {prefix, name.substring(prefix.length() + 1)}; // + 1 to skip the space between the prefix and the name
+	}
+
+	private void add(String prefix) {
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++)
+			node = node.getOrAddChild(prefix.charAt(i));
+		node.prefix = prefix;
+	}
+
+	/**
+	 * A node of the trie. Its children are kept in arrays sorted by character, which are small enough
+	 * to search quickly and do not box the characters.
+	 */
+	private static class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private String prefix; // Non-null if the path to this node is a prefix
+
+		private Node child(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		private Node getOrAddChild(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			if (i >= 0)
+				return children[i];
+
+			i = -i - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+			System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+			newKeys[i] = c;
+			newChildren[i] = new Node();
+
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[i];
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session tokens and active authentication nonces, generated in advance by a background thread from a
+ * single shared {@link SecureRandom}, so that /start neither seeds a new generator nor waits for one.
+ * When a pool runs empty, the value is generated on the spot instead.
+ *
+ * Session tokens are the URL-safe Base64 encoding (without padding) of {@value #SESSION_TOKEN_LENGTH}
+ * random bytes, so they always consist of {@value #SESSION_TOKEN_CHARS} characters from [A-Za-z0-9_-].
+ */
+class TokenPool {
+	static final int SESSION_TOKEN_LENGTH = 33;
+	static final int SESSION_TOKEN_CHARS = SESSION_TOKEN_LENGTH / 3 * 4;
+	static final int AA_NONCE_LENGTH = 8;
+
+	private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+	private static final SecureRandom random = createRandom();
+	private static final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "token-pool");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Metrics.Counter takes = Metrics.getInstance().counter("mno_token_pool_total",
+			"Session tokens and nonces taken from the pool (hit) or generated on the spot (miss)", "kind", "result");
+
+	private static final ConcurrentLinkedQueue<String> tokens = new ConcurrentLinkedQueue<>();
+	private static final ConcurrentLinkedQueue<byte[]> nonces = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger tokenCount = new AtomicInteger();
+	private static final AtomicInteger nonceCount = new AtomicInteger();
+	private static final AtomicBoolean refilling = new AtomicBoolean();
+
+	private TokenPool() {}
+
+	/**
+	 * Prefer a non-blocking DRBG (Java 9+) or SHA1PRNG, seeded once, over the platform default, which on
+	 * Linux reads from /dev/urandom under a global lock for every call
+	 */
+	private static SecureRandom createRandom() {
+		for (String algorithm : new String[] {"DRBG", "SHA1PRNG"}) {
+			try {
+				SecureRandom random = SecureRandom.getInstance(algorithm);
+				random.nextBytes(new byte[1]); // Force seeding now rather than on the first request
+				return random;
+			} catch (NoSuchAlgorithmException e) {
+				// Try the next one
+			}
+		}
+		return new SecureRandom();
+	}
+
+	static String sessionToken() {
+		String token = tokens.poll();
+		if (token != null) {
+			tokenCount.decrementAndGet();
+			takes.inc("token", "hit");
+		} else {
+			token = newSessionToken();
+			takes.inc("token", "miss");
+		}
+		refillIfNeeded(tokenCount);
+		return token;
+	}
+
+	static byte[] aaNonce() {
+		byte[] nonce = nonces.poll();
+		if (nonce != null) {
+			nonceCount.decrementAndGet();
+			takes.inc("nonce", "hit");
+		} else {
+			nonce = newAANonce();
+			takes.inc("nonce", "miss");
+		}
+		refillIfNeeded(nonceCount);
+		return nonce;
+	}
+
+	static String newSessionToken() {
+		byte[] token = new byte[SESSION_TOKEN_LENGTH];
+		random.nextBytes(token);
+		return encoder.encodeToString(token);
+	}
+
+	static byte[] newAANonce() {
+		byte[] nonce = new byte[AA_NONCE_LENGTH];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * Start refilling the pools once one of them is below half its size
+	 */
+	private static void refillIfNeeded(AtomicInteger count) {
+		int size = MNOConfiguration.getInstance().getTokenPoolSize();
+		if (count.get() < size / 2 && refilling.compareAndSet(false, true))
+			refiller.execute(TokenPool::refill);
+	}
+
+	private static void refill() {
+		try {
+			int size = MNOConfiguration.getInstance().getTokenPoolSize();
+			while (tokenCount.get() < size) {
+				tokens.add(newSessionToken());
+				tokenCount.incrementAndGet();
+			}
+			while (nonceCount.get() < size) {
+				nonces.add(newAANonce());
+				nonceCount.incrementAndGet();
+			}
+		} finally {
+			refilling.set(false);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lightweight in-process tracing. A fraction of the requests is sampled, as configured; sampled requests with a
+ * W3C traceparent header continue the trace of the client. Only if trace_client_sampling is enabled is a request
+ * traced whenever the client marked it as sampled, as otherwise any client could make us trace all of its
+ * requests. Finished spans are kept in a ring buffer that holds the most recent ones, which can be read using
+ * {@link TraceResource}.
+ */
+public class Tracing {
+	public static final String HEADER = "traceparent";
+
+	private static final AtomicReferenceArray<Span> ring =
+			new AtomicReferenceArray<>(Math.max(1, MNOConfiguration.getInstance().getTraceBufferSize()));
+	private static final AtomicLong next = new AtomicLong();
+
+	private Tracing() {}
+
+	/**
+	 * Start the root span of a request.
+	 * @param name Name of the span
+	 * @param traceparent Value of the traceparent header of the request, may be null
+	 * @return the span, or {@link Span#NOOP} if the trace is not sampled
+	 */
+	public static Span start(String name, String traceparent) {
+		MNOConfiguration conf = MNOConfiguration.getInstance();
+		return start(name, traceparent, conf.getTraceSampleRate(), conf.isTraceClientSampling());
+	}
+
+	/**
+	 * @param rate Fraction of the requests to trace
+	 * @param clientSampling If the sampled flag of the traceparent header decides whether the request is traced
+	 */
+	static Span start(String name, String traceparent, double rate, boolean clientSampling) {
+		boolean valid = traceparent != null && isValid(traceparent);
+
+		boolean sampled;
+		if (valid && clientSampling)
+			sampled = (Character.digit(traceparent.charAt(54), 16) & 1) == 1;
+		else
+			sampled = rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+
+		if (!sampled)
+			return Span.NOOP;
+		if (valid)
+			return new Span(traceparent.substring(3, 35), traceparent.substring(36, 52), name);
+		return new Span(Span.randomHex(2), null, name);
+	}
+
+	/**
+	 * @return true if the header is of the form 00-{32 hex digits}-{16 hex digits}-{2 hex digits}
+	 */
+	private static boolean isValid(String traceparent) {
+		if (traceparent.length() != 55 || !traceparent.startsWith("00-")
+				|| traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-')
+			return false;
+
+		for (int i = 3; i < 55; i++) {
+			if (i != 35 && i != 52 && Character.digit(traceparent.charAt(i), 16) < 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	static void record(Span span) {
+		ring.set((int) (next.getAndIncrement() % ring.length()), span);
+	}
+
+	/**
+	 * @param traceId Only return the spans of this trace, if not null
+	 * @param limit Maximum amount of spans to return
+	 * @return the most recently finished spans, latest first
+	 */
+	public static List<Span> getRecent(String traceId, int limit) {
+		List<Span> spans = new ArrayList<>();
+		long last = next.get();
+		for (long i = last - 1; i >= 0 && i >= last - ring.length() && spans.size() < limit; i--) {
+			Span span = ring.get((int) (i % ring.length()));
+			if (span != null && (traceId == null || traceId.equals(span.getTraceId())))
+				spans.add(span);
+		}
+
+		return spans;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A {@link Writer} that encodes characters as UTF-8 into a growable byte array, which can be reused by
+ * calling {@link #reset()}. Unlike an {@link java.io.OutputStreamWriter} on top of a
+ * {@link java.io.ByteArrayOutputStream}, this does not allocate intermediate buffers. Not thread-safe.
+ */
+class Utf8Writer extends Writer {
+	private final int initialCapacity;
+	private byte[] buf;
+	private int count;
+	private char highSurrogate;
+
+	Utf8Writer(int initialCapacity) {
+		this.initialCapacity = initialCapacity;
+		this.buf = new byte[initialCapacity];
+	}
+
+	@Override
+	public void write(int c) {
+		ensureCapacity(count + 4);
+		encode((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		ensureCapacity(count + len * 3);
+		for (int i = off; i < off + len; i++)
+			encode(cbuf[i]);
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		ensureCapacity(count + len * 3);
+		for (int i = off; i < off + len; i++)
+			encode(str.charAt(i));
+	}
+
+	private void encode(char c) {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+				buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+				return;
+			}
+			buf[count++] = '?'; // Unpaired surrogate
+		}
+
+		if (c < 0x80) {
+			buf[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buf[count++] = (byte) (0xc0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buf[count++] = '?'; // Unpaired surrogate
+		} else {
+			buf[count++] = (byte) (0xe0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buf[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		// A pending high surrogate may add one extra byte
+		capacity += 1;
+		if (buf.length < capacity)
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+	}
+
+	/**
+	 * @return the amount of bytes written so far
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return the internal buffer, of which the first {@link #size()} bytes are valid
+	 */
+	byte[] getBuffer() {
+		return buf;
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, count);
+	}
+
+	void reset() {
+		count = 0;
+		highSurrogate = 0;
+	}
+
+	/**
+	 * Drop the buffer if it has grown beyond the specified size.
+	 */
+	void trim(int maxCapacity) {
+		if (buf.length > maxCapacity)
+			buf = new byte[initialCapacity];
+		reset();
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+}
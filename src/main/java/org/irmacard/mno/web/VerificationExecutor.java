@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.web.exceptions.ServerBusyException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs the CPU-intensive document verifications on a dedicated, bounded pool of threads, so that a burst
+ * of enrollments cannot exhaust the threads of the servlet container. If too many verifications are
+ * waiting, new ones are refused with a {@link ServerBusyException}.
+ */
+public class VerificationExecutor {
+	private static VerificationExecutor instance = new VerificationExecutor(MNOConfiguration.getInstance());
+
+	private final ThreadPoolExecutor executor;
+	private final long retryAfter;
+
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+	public static VerificationExecutor getInstance() {
+		return instance;
+	}
+
+	private VerificationExecutor(MNOConfiguration conf) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(conf.getVerificationThreads(), conf.getVerificationThreads(),
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(conf.getVerificationQueue()),
+				r -> {
+					Thread t = new Thread(r, "document-verifier-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		retryAfter = conf.getVerificationRetryAfter();
+
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("mno_verification_queue_depth", "Amount of verifications waiting for a thread",
+				this::getQueueDepth);
+		metrics.gauge("mno_verification_active", "Amount of verifications that are running", this::getActiveCount);
+		metrics.counter("mno_verification_executed_total", "Amount of verifications that have been started",
+				this::getExecutedCount);
+		metrics.counter("mno_verification_rejected_total", "Amount of verifications refused because the queue was full",
+				this::getRejectedCount);
+		metrics.counter("mno_verification_wait_seconds_total", "Total time verifications waited for a thread",
+				() -> getTotalWaitTime(TimeUnit.MICROSECONDS) / 1e6);
+		metrics.gauge("mno_verification_wait_seconds_max", "Longest time a verification waited for a thread",
+				() -> getMaxWaitTime(TimeUnit.MICROSECONDS) / 1e6);
+	}
+
+	/**
+	 * Schedule the task for execution.
+	 * @return A stage that completes with the result of the task, or that fails with a
+	 * {@link ServerBusyException} if too many tasks are already waiting
+	 */
+	public <T> CompletionStage<T> submit(final Supplier<T> task) {
+		final long queued = System.nanoTime();
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				long wait = System.nanoTime() - queued;
+				waitNanos.add(wait);
+				maxWaitNanos.accumulate(wait);
+				executed.increment();
+				return task.get();
+			}, executor);
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			CompletableFuture<T> future = new CompletableFuture<>();
+			future.completeExceptionally(new ServerBusyException(retryAfter));
+			return future;
+		}
+	}
+
+	/**
+	 * @return the amount of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the amount of tasks currently running
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return the amount of tasks that were started
+	 */
+	public long getExecutedCount() {
+		return executed.sum();
+	}
+
+	/**
+	 * @return the amount of tasks that were refused because the queue was full
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return the total time that started tasks have waited in the queue
+	 */
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(waitNanos.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the longest time that a task has waited in the queue
+	 */
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+}
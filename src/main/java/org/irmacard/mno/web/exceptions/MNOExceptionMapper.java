@@ -1,8 +1,12 @@
 package org.irmacard.mno.web.exceptions;
 
 import org.irmacard.api.common.exceptions.ApiErrorMessage;
-import org.irmacard.api.common.util.GsonUtil;
+import org.irmacard.mno.web.Logging;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
@@ -11,20 +15,31 @@ import javax.ws.rs.ext.ExceptionMapper;
  * Convert an exception to a response for the client of the server
  */
 public class MNOExceptionMapper implements ExceptionMapper<Throwable> {
+	private static final Logger logger = LoggerFactory.getLogger(MNOExceptionMapper.class);
+
 	@Override
 	public Response toResponse(Throwable ex) {
 		ApiErrorMessage message = new ApiErrorMessage(ex);
 
-		System.out.println("Exception:");
-		System.out.println(message.getStatus()
-				+ " " + message.getError().toString()
-				+ ", description: " + message.getDescription()
-				+ ", message: " + message.getMessage());
-		System.out.println(ApiErrorMessage.getExceptionStacktrace(ex));
+		// Server errors are always logged including the stack trace; client errors are sampled
+		if (message.getStatus() >= 500)
+			logger.error("event=exception status={} error={} description={} message={}", message.getStatus(),
+					message.getError(), Logging.lazy(message::getDescription), Logging.lazy(message::getMessage), ex);
+		else if (logger.isInfoEnabled() && Logging.sample("client_errors"))
+			logger.info("event=exception status={} error={} message={}", message.getStatus(),
+					message.getError(), Logging.lazy(message::getMessage));
 
-		return Response.status(message.getStatus())
+		Response.ResponseBuilder response = Response.status(message.getStatus())
 				.entity(message)
-				.type(MediaType.APPLICATION_JSON)
-				.build();
+				.type(MediaType.APPLICATION_JSON);
+
+		// Tell the client when to retry, if the exception says so (e.g. ServerBusyException)
+		if (ex instanceof WebApplicationException) {
+			Object retryAfter = ((WebApplicationException) ex).getResponse().getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+			if (retryAfter != null)
+				response.header(HttpHeaders.RETRY_AFTER, retryAfter);
+		}
+
+		return response.build();
 	}
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashMap;
+
+public class AgeThresholdsTest {
+	private static final ZoneId zone = ZoneId.of("Europe/Amsterdam");
+
+	private static Clock at(String date) {
+		return Clock.fixed(LocalDate.parse(date).atTime(12, 0).atZone(zone).toInstant(), zone);
+	}
+
+	@Test
+	public void birthdayTest() {
+		AgeThresholds thresholds = new AgeThresholds(new int[] {12, 18}, at("2016-06-15"));
+
+		HashMap<String, String> attrs = thresholds.evaluate(LocalDate.parse("1998-06-15"));
+		assert(attrs.get("over18").equals("yes"));
+		assert(attrs.get("over12").equals("yes"));
+
+		attrs = thresholds.evaluate(LocalDate.parse("1998-06-16"));
+		assert(attrs.get("over18").equals("no"));
+		assert(attrs.get("over12").equals("yes"));
+		assert(attrs.size() == 2);
+	}
+
+	@Test
+	public void leapDayTest() {
+		// Someone born on February 29 turns 18 on March 1 in a year that is not a leap year
+		AgeThresholds thresholds = new AgeThresholds(new int[] {18}, at("2014-02-28"));
+		assert(thresholds.evaluate(LocalDate.parse("1996-02-29")).get("over18").equals("no"));
+		assert(thresholds.evaluate(LocalDate.parse("1996-02-28")).get("over18").equals("yes"));
+
+		thresholds = new AgeThresholds(new int[] {18}, at("2014-03-01"));
+		assert(thresholds.evaluate(LocalDate.parse("1996-02-29")).get("over18").equals("yes"));
+		assert(thresholds.evaluate(LocalDate.parse("1996-03-01")).get("over18").equals("yes"));
+		assert(thresholds.evaluate(LocalDate.parse("1996-03-02")).get("over18").equals("no"));
+
+		// In leap years, February 29 is a birthday like any other
+		thresholds = new AgeThresholds(new int[] {18}, at("2032-02-29"));
+		assert(thresholds.evaluate(LocalDate.parse("2014-02-28")).get("over18").equals("yes"));
+		assert(thresholds.evaluate(LocalDate.parse("2014-03-01")).get("over18").equals("no"));
+		thresholds = new AgeThresholds(new int[] {16}, at("2016-02-29"));
+		assert(thresholds.evaluate(LocalDate.parse("2000-02-29")).get("over16").equals("yes"));
+		thresholds = new AgeThresholds(new int[] {16}, at("2016-02-28"));
+		assert(thresholds.evaluate(LocalDate.parse("2000-02-29")).get("over16").equals("no"));
+	}
+
+	@Test
+	public void dayChangeTest() {
+		MutableClock clock = new MutableClock(at("2016-06-14").instant());
+		AgeThresholds thresholds = new AgeThresholds(new int[] {18}, clock);
+		assert(thresholds.evaluate(LocalDate.parse("1998-06-15")).get("over18").equals("no"));
+
+		clock.instant = clock.instant.plusSeconds(24 * 60 * 60);
+		assert(thresholds.evaluate(LocalDate.parse("1998-06-15")).get("over18").equals("yes"));
+	}
+
+	private static class MutableClock extends Clock {
+		Instant instant;
+
+		MutableClock(Instant instant) {
+			this.instant = instant;
+		}
+
+		@Override public ZoneId getZone() { return zone; }
+		@Override public Clock withZone(ZoneId zone) { throw new UnsupportedOperationException(); }
+		@Override public Instant instant() { return instant; }
+	}
+}
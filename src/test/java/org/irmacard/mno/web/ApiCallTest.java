@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.apache.http.NoHttpResponseException;
+import org.irmacard.api.common.ClientQr;
+import org.junit.Test;
+
+import javax.ws.rs.ServiceUnavailableException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+public class ApiCallTest {
+	private static final String PRIMARY = "http://primary/issue/";
+	private static final String SECONDARY = "http://secondary/issue/";
+
+	/**
+	 * Call that answers each POST with the result of the specified function, and records the servers posted to
+	 */
+	private static class TestCall extends ApiCall {
+		final List<String> posted = new ArrayList<>();
+		private final Function<String, CompletableFuture<ClientQr>> answer;
+
+		TestCall(int retries, Function<String, CompletableFuture<ClientQr>> answer) {
+			super("jwt", "test", Span.NOOP, retries, 1);
+			this.answer = answer;
+		}
+
+		@Override
+		CompletionStage<ClientQr> post(String server) {
+			synchronized (posted) {
+				posted.add(server);
+			}
+			return answer.apply(server);
+		}
+
+		CompletableFuture<ClientQr> start(String secondary, int hedgeDelay) {
+			return start(PRIMARY, secondary, hedgeDelay, new CircuitBreaker("test", 0, 1, TimeUnit.SECONDS));
+		}
+	}
+
+	private static CompletableFuture<ClientQr> failed(Throwable ex) {
+		CompletableFuture<ClientQr> future = new CompletableFuture<>();
+		future.completeExceptionally(ex);
+		return future;
+	}
+
+	private static Throwable getException(CompletableFuture<ClientQr> result) throws Exception {
+		try {
+			result.get(1, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		throw new AssertionError("Request did not fail");
+	}
+
+	@Test
+	public void hedgeWinsTest() throws Exception {
+		// The primary server never answers
+		TestCall call = new TestCall(0, server ->
+				server.equals(PRIMARY) ? new CompletableFuture<>() : CompletableFuture.completedFuture(null));
+
+		CompletableFuture<ClientQr> result = call.start(SECONDARY, 20);
+		assert(!result.isDone());
+		result.get(1, TimeUnit.SECONDS);
+		assert(call.posted.size() == 2);
+		assert(call.posted.get(1).equals(SECONDARY));
+	}
+
+	@Test
+	public void primaryFailsBeforeHedgeTest() throws Exception {
+		// The failure of the primary server does not fail the request, which waits for the secondary one instead
+		TestCall call = new TestCall(0, server ->
+				server.equals(PRIMARY) ? failed(new IllegalStateException()) : CompletableFuture.completedFuture(null));
+
+		CompletableFuture<ClientQr> result = call.start(SECONDARY, 50);
+		assert(!result.isDone());
+		result.get(1, TimeUnit.SECONDS);
+		assert(call.posted.size() == 2);
+
+		// If the secondary server fails too, so does the request
+		call = new TestCall(0, server -> failed(new IllegalStateException(server)));
+		Throwable ex = getException(call.start(SECONDARY, 20));
+		assert(ex instanceof IllegalStateException);
+		assert(call.posted.size() == 2);
+	}
+
+	@Test
+	public void retriesExhaustedTest() throws Exception {
+		TestCall call = new TestCall(2, server -> failed(new ConnectException()));
+		assert(getException(call.start(null, 0)) instanceof ConnectException);
+		assert(call.posted.size() == 3);
+
+		call = new TestCall(2, server -> failed(new ServiceUnavailableException()));
+		assert(getException(call.start(null, 0)) instanceof ServiceUnavailableException);
+		assert(call.posted.size() == 3);
+
+		// The API server may have created a session before the connection was closed, so this is not retried
+		call = new TestCall(2, server -> failed(new NoHttpResponseException("closed")));
+		assert(getException(call.start(null, 0)) instanceof NoHttpResponseException);
+		assert(call.posted.size() == 1);
+	}
+
+	@Test
+	public void retrySucceedsTest() throws Exception {
+		final int[] attempts = {0};
+		TestCall call = new TestCall(2, server ->
+				++attempts[0] < 2 ? failed(new ConnectException()) : CompletableFuture.completedFuture(null));
+		call.start(null, 0).get(1, TimeUnit.SECONDS);
+		assert(call.posted.size() == 2);
+	}
+}
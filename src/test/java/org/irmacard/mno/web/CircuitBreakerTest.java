@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerTest {
+	@Test
+	public void opensAfterThresholdTest() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 3, 1, TimeUnit.HOURS);
+		breaker.onFailure();
+		breaker.onFailure();
+		assert(breaker.allowRequest());
+
+		// A success in between resets the count
+		breaker.onSuccess();
+		breaker.onFailure();
+		breaker.onFailure();
+		assert(breaker.getState() == CircuitBreaker.State.CLOSED);
+
+		breaker.onFailure();
+		assert(breaker.getState() == CircuitBreaker.State.OPEN);
+		assert(!breaker.allowRequest());
+		assert(breaker.getRetryAfter() > 3000);
+	}
+
+	@Test
+	public void halfOpenTest() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 20, TimeUnit.MILLISECONDS);
+		breaker.onFailure();
+		assert(!breaker.allowRequest());
+
+		Thread.sleep(30);
+		assert(breaker.allowRequest());
+		assert(breaker.getState() == CircuitBreaker.State.HALF_OPEN);
+
+		// A failing trial request opens the circuit again
+		breaker.onFailure();
+		assert(!breaker.allowRequest());
+
+		Thread.sleep(30);
+		assert(breaker.allowRequest());
+		breaker.onSuccess();
+		assert(breaker.getState() == CircuitBreaker.State.CLOSED);
+		assert(breaker.allowRequest());
+	}
+
+	@Test
+	public void disabledTest() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 0, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 100; i++)
+			breaker.onFailure();
+		assert(breaker.allowRequest());
+	}
+
+	@Test
+	public void changedSettingsTest() {
+		final int[] threshold = {0};
+		CircuitBreaker breaker = new CircuitBreaker("test", () -> threshold[0], () -> TimeUnit.HOURS.toNanos(1));
+		breaker.onFailure();
+		assert(breaker.getState() == CircuitBreaker.State.CLOSED);
+
+		// A new threshold applies to the failures that follow
+		threshold[0] = 2;
+		breaker.onFailure();
+		assert(breaker.getState() == CircuitBreaker.State.OPEN);
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.irmacard.api.common.AttributeDisjunctionList;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+
+public class DisclosureRequestTemplateTest {
+	@Test
+	public void claimsTest() {
+		AttributeDisjunctionList list = new AttributeDisjunctionList(0);
+		DisclosureRequestTemplate template = new DisclosureRequestTemplate(list, "testsp", "testsp");
+		assert(template.getClaims(1234567890).equals(ApiClient.getDisclosureJwtClaims(list, "testsp", 1234567890)));
+	}
+
+	@Test
+	public void poolTest() throws NoSuchAlgorithmException, InterruptedException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keys = generator.generateKeyPair();
+
+		DisclosureRequestTemplate template = new DisclosureRequestTemplate(
+				new AttributeDisjunctionList(0), "testsp", "testsp");
+
+		// The first JWT is signed on the spot, after which the pool is filled in the background
+		String jwt = template.take(SignatureAlgorithm.RS256, keys.getPrivate());
+		for (int i = 0; i < 100 && template.getPoolSize() < MNOConfiguration.getInstance().getDisclosureJwtPoolSize(); i++)
+			Thread.sleep(20);
+		assert(template.getPoolSize() == MNOConfiguration.getInstance().getDisclosureJwtPoolSize());
+
+		String pooled = template.take(SignatureAlgorithm.RS256, keys.getPrivate());
+		for (String token : new String[] {jwt, pooled}) {
+			Claims claims = Jwts.parser().setSigningKey(keys.getPublic()).parseClaimsJws(token).getBody();
+			assert(claims.getSubject().equals("verification_request"));
+			assert(claims.getIssuer().equals("testsp"));
+		}
+
+		// Pooled JWTs signed with another key are not handed out
+		KeyPair other = generator.generateKeyPair();
+		String jwt2 = template.take(SignatureAlgorithm.RS256, other.getPrivate());
+		Jwts.parser().setSigningKey(other.getPublic()).parseClaimsJws(jwt2);
+	}
+}
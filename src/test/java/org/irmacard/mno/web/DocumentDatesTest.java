@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+public class DocumentDatesTest {
+	private static final LocalDate today = LocalDate.of(2016, 6, 15);
+
+	@Test
+	public void mrzDateOfBirthTest() {
+		assert(DocumentDates.parseMrzDateOfBirth("740812", today).equals(LocalDate.of(1974, 8, 12)));
+		assert(DocumentDates.parseMrzDateOfBirth("160615", today).equals(LocalDate.of(2016, 6, 15)));
+		// A date of birth is never in the future
+		assert(DocumentDates.parseMrzDateOfBirth("160616", today).equals(LocalDate.of(1916, 6, 16)));
+		assert(DocumentDates.parseMrzDateOfBirth("170101", today).equals(LocalDate.of(1917, 1, 1)));
+		assert(DocumentDates.parseMrzDateOfBirth("000229", today).equals(LocalDate.of(2000, 2, 29)));
+	}
+
+	@Test
+	public void mrzDateOfExpiryTest() {
+		assert(DocumentDates.parseMrzDateOfExpiry("240301", today).equals(LocalDate.of(2024, 3, 1)));
+		assert(DocumentDates.parseMrzDateOfExpiry("351231", today).equals(LocalDate.of(2035, 12, 31)));
+		assert(DocumentDates.parseMrzDateOfExpiry("991231", today).equals(LocalDate.of(1999, 12, 31)));
+	}
+
+	@Test
+	public void edlDateTest() {
+		assert(DocumentDates.parseEdlDate("11011976").equals(LocalDate.of(1976, 1, 11)));
+		assert(DocumentDates.parseEdlDate("29022016").equals(LocalDate.of(2016, 2, 29)));
+	}
+
+	@Test
+	public void invalidDateTest() {
+		String[] mrz = {"7408<<", "741312", "010229", "74081", null};
+		for (String date : mrz) {
+			try {
+				DocumentDates.parseMrzDateOfBirth(date, today);
+				assert(false);
+			} catch (DateTimeException e) { /* expected */ }
+		}
+
+		String[] edl = {"29022015", "1101197", "11-01-1976", ""};
+		for (String date : edl) {
+			try {
+				DocumentDates.parseEdlDate(date);
+				assert(false);
+			} catch (DateTimeException e) { /* expected */ }
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.irmacard.mno.common.PassportVerificationResult;
+import org.jmrtd.lds.SODFile;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class DocumentVerifierTest {
+	private static final byte[] NONCE = {1, 2, 3, 4, 5, 6, 7, 8};
+
+	@Test
+	public void trustedSignerTest() throws Exception {
+		X509Certificate ds = getCertificate("ds.der");
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		long now = System.currentTimeMillis();
+
+		assert(verifier.isTrusted(ds, now));
+		assert(verifier.getCacheSize() == 1);
+		assert(verifier.isTrusted(ds, now));
+		assert(verifier.getCacheSize() == 1);
+
+		// Cached certificates are no longer trusted once they expire
+		assert(!verifier.isTrusted(ds, ds.getNotAfter().getTime() + 1));
+		assert(verifier.getCacheSize() == 0);
+	}
+
+	@Test
+	public void untrustedSignerTest() throws Exception {
+		X509Certificate ds = getCertificate("ds.der");
+
+		// Same name as the CSCA that signed the certificate, but another key
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("other-csca.der")), 3600000);
+		assert(!verifier.isTrusted(ds, System.currentTimeMillis()));
+		assert(verifier.getCacheSize() == 0);
+
+		// The certificate is not valid before it was issued
+		verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		assert(!verifier.isTrusted(ds, ds.getNotBefore().getTime() - 1));
+		assert(verifier.getCacheSize() == 0);
+	}
+
+	@Test
+	public void validDocumentTest() throws Exception {
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		assert(verifier.verify(getDocument(), NONCE) == PassportVerificationResult.SUCCESS);
+	}
+
+	// Each of the rejections below is a result rather than null, so the resource does not fall back to
+	// DocumentDataMessage.verify() for the document
+
+	@Test
+	public void tamperedDataGroupTest() throws Exception {
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		DocumentVerifier.Document document = getDocument();
+		document.dataGroups.get(1)[10] ^= 1;
+		assert(verifier.verify(document, NONCE) == PassportVerificationResult.HASHES_INVALID);
+	}
+
+	@Test
+	public void wrongCscaTest() throws Exception {
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("other-csca.der")), 3600000);
+		assert(verifier.verify(getDocument(), NONCE) == PassportVerificationResult.SIGNATURE_INVALID);
+	}
+
+	@Test
+	public void expiredSignerTest() throws Exception {
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		long expired = getCertificate("ds.der").getNotAfter().getTime() + 1;
+		assert(verifier.verify(getDocument(), NONCE, expired) == PassportVerificationResult.SIGNATURE_INVALID);
+	}
+
+	@Test
+	public void invalidActiveAuthenticationTest() throws Exception {
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		DocumentVerifier.Document document = getDocument();
+		document.aaResponse[10] ^= 1;
+		assert(verifier.verify(document, NONCE) == PassportVerificationResult.AA_FAILED);
+	}
+
+	@Test
+	public void wrongNonceTest() throws Exception {
+		DocumentVerifier verifier = new DocumentVerifier(Collections.singletonList(getCertificate("csca.der")), 3600000);
+		byte[] nonce = {1, 2, 3, 4, 5, 6, 7, 9};
+		assert(verifier.verify(getDocument(), nonce) == PassportVerificationResult.AA_FAILED);
+	}
+
+	@Test
+	public void activeAuthenticationTest() throws Exception {
+		JsonObject edl = new JsonParser().parse(Fixtures.getEDLJson("")).getAsJsonObject();
+		byte[] dg15 = Base64.getDecoder().decode(edl.get("dg15File").getAsString());
+		byte[] response = Base64.getDecoder().decode(edl.get("response").getAsString());
+
+		// DG15 is the SubjectPublicKeyInfo, wrapped in a tag (0x6F) and a 3-byte length
+		RSAPublicKey key = (RSAPublicKey) KeyFactory.getInstance("RSA")
+				.generatePublic(new X509EncodedKeySpec(Arrays.copyOfRange(dg15, 4, dg15.length)));
+
+		assert(DocumentVerifier.verifyActiveAuthentication(key, response, NONCE));
+		assert(!DocumentVerifier.verifyActiveAuthentication(key, response, new byte[] {1, 2, 3, 4, 5, 6, 7, 9}));
+		response[10] ^= 1;
+		assert(!DocumentVerifier.verifyActiveAuthentication(key, response, NONCE));
+	}
+
+	@Test
+	public void hashesTest() throws Exception {
+		JsonObject edl = new JsonParser().parse(Fixtures.getEDLJson("")).getAsJsonObject();
+		byte[] sod = Base64.getDecoder().decode(edl.get("sodFile").getAsString());
+		Map<Integer, byte[]> dataGroups = new HashMap<>();
+		dataGroups.put(1, Base64.getDecoder().decode(edl.get("dg1File").getAsString()));
+		dataGroups.put(15, Base64.getDecoder().decode(edl.get("dg15File").getAsString()));
+
+		// The SOD contains the hashes of the data groups including their tag and length, as they are passed
+		Map<Integer, byte[]> hashes = new HashMap<>();
+		for (Map.Entry<Integer, byte[]> dataGroup : dataGroups.entrySet()) {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(dataGroup.getValue());
+			assert(indexOf(sod, hash) >= 0);
+			hashes.put(dataGroup.getKey(), hash);
+		}
+
+		assert(DocumentVerifier.verifyHashes(hashes, "SHA-256", dataGroups));
+		assert(DocumentVerifier.verifyHashes(hashes, "SHA256", dataGroups));
+		assert(!DocumentVerifier.verifyHashes(hashes, "SHA-1", dataGroups));
+		assert(!DocumentVerifier.verifyHashes(Collections.singletonMap(1, hashes.get(1)), "SHA-256", dataGroups));
+
+		dataGroups.get(1)[10] ^= 1;
+		assert(!DocumentVerifier.verifyHashes(hashes, "SHA-256", dataGroups));
+	}
+
+	/**
+	 * @return the data groups and active authentication response of the eDL fixture, with edl-sod.der as SOD: the
+	 * SOD of the fixture with the same data group hashes, but signed by ds.der (which is signed by csca.der)
+	 */
+	private static DocumentVerifier.Document getDocument() throws Exception {
+		JsonObject edl = new JsonParser().parse(Fixtures.getEDLJson("")).getAsJsonObject();
+		Map<Integer, byte[]> dataGroups = new HashMap<>();
+		dataGroups.put(1, Base64.getDecoder().decode(edl.get("dg1File").getAsString()));
+		byte[] dg15 = Base64.getDecoder().decode(edl.get("dg15File").getAsString());
+		dataGroups.put(13, dg15); // The number of the active authentication key in a driving licence
+
+		PublicKey key = KeyFactory.getInstance("RSA")
+				.generatePublic(new X509EncodedKeySpec(Arrays.copyOfRange(dg15, 4, dg15.length)));
+		byte[] response = Base64.getDecoder().decode(edl.get("response").getAsString());
+
+		try (InputStream stream = DocumentVerifierTest.class.getClassLoader()
+				.getResourceAsStream("fixtures/edl-sod.der")) {
+			return new DocumentVerifier.Document(new SODFile(stream), dataGroups, key, response);
+		}
+	}
+
+	private static X509Certificate getCertificate(String name) throws Exception {
+		try (InputStream stream = DocumentVerifierTest.class.getClassLoader().getResourceAsStream("fixtures/" + name)) {
+			return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(stream);
+		}
+	}
+
+	private static int indexOf(byte[] haystack, byte[] needle) {
+		outer:
+		for (int i = 0; i + needle.length <= haystack.length; i++) {
+			for (int j = 0; j < needle.length; j++)
+				if (haystack[i + j] != needle[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.credentials.info.CredentialIdentifier;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class EnrollmentSessionStoreTest {
+	private static final long HOUR = 3600 * 1000;
+
+	@Test
+	public void codecTest() throws IOException {
+		EnrollmentSession session = getSession("token");
+		byte[] encoded = EnrollmentSessionCodec.encode(session);
+		EnrollmentSession decoded = EnrollmentSessionCodec.decode(encoded, 0, encoded.length);
+
+		assert(decoded.getSessionToken().equals("token"));
+		assert(Arrays.equals(decoded.getAANonce(), session.getAANonce()));
+		assert(decoded.getState() == EnrollmentSession.State.PASSPORT_VERIFIED);
+		assert(decoded.getCreated() == session.getCreated());
+		assert(decoded.getCredentialList().equals(session.getCredentialList()));
+	}
+
+	@Test
+	public void sharedFileTest() throws IOException {
+		File file = File.createTempFile("sessions", ".db");
+		file.deleteOnExit();
+
+		// Two stores on the same file behave like two server processes
+		MappedFileEnrollmentSessions first = new MappedFileEnrollmentSessions(file, 64 * 1024, HOUR, HOUR);
+		MappedFileEnrollmentSessions second = new MappedFileEnrollmentSessions(file, 64 * 1024, HOUR, HOUR);
+
+		EnrollmentSession session = getSession("token");
+		first.addSession(session);
+		assert(second.getSession("token").getCredentialList().equals(session.getCredentialList()));
+
+		first.remove(session);
+		assert(second.getSession("token") == null);
+	}
+
+	@Test
+	public void compactionTest() throws IOException {
+		File file = File.createTempFile("sessions", ".db");
+		file.deleteOnExit();
+		MappedFileEnrollmentSessions store = new MappedFileEnrollmentSessions(file, 16 * 1024, HOUR, HOUR);
+
+		// Much more data than fits in the file, but only the last few sessions are alive at any time
+		for (int i = 0; i < 1000; i++) {
+			store.addSession(getSession("token" + i));
+			if (i >= 5)
+				store.remove(store.getSession("token" + (i - 5)));
+		}
+
+		assert(store.size() == 5);
+		assert(store.getSession("token999") != null);
+	}
+
+	@Test
+	public void fileIdleTimeoutTest() throws IOException, InterruptedException {
+		File file = File.createTempFile("sessions", ".db");
+		file.deleteOnExit();
+		MappedFileEnrollmentSessions first = new MappedFileEnrollmentSessions(file, 16 * 1024, 200, HOUR);
+		MappedFileEnrollmentSessions second = new MappedFileEnrollmentSessions(file, 16 * 1024, 200, HOUR);
+		first.addSession(getSession("token"));
+
+		// Looking the session up, in any process, keeps it alive past the idle timeout counted from its creation
+		for (int i = 0; i < 4; i++) {
+			Thread.sleep(100);
+			assert((i % 2 == 0 ? first : second).getSession("token") != null);
+		}
+
+		Thread.sleep(300);
+		assert(first.getSession("token") == null);
+		assert(second.getSession("token") == null);
+	}
+
+	@Test
+	public void fileCapacityMismatchTest() throws IOException {
+		File file = File.createTempFile("sessions", ".db");
+		file.deleteOnExit();
+		new MappedFileEnrollmentSessions(file, 16 * 1024, HOUR, HOUR);
+
+		try {
+			new MappedFileEnrollmentSessions(file, 32 * 1024, HOUR, HOUR);
+			assert(false);
+		} catch (IOException e) {
+			assert(e.getMessage().contains("session_store_size"));
+		}
+	}
+
+	@Test
+	public void memoryCapacityTest() throws InterruptedException {
+		InMemoryEnrollmentSessions store = new InMemoryEnrollmentSessions(HOUR, HOUR, 10, 0);
+		for (int i = 0; i < 10; i++)
+			store.addSession(getSession("token" + i));
+
+		// Used sessions are evicted after the ones that were not used
+		Thread.sleep(2);
+		assert(store.getSession("token0") != null);
+		for (int i = 10; i < 19; i++)
+			store.addSession(getSession("token" + i));
+
+		assert(store.size() == 10);
+		assert(store.getCapacityEvictions() == 9);
+		assert(store.getSession("token0") != null);
+		for (int i = 1; i < 10; i++)
+			assert(store.getSession("token" + i) == null);
+		assert(store.getSession("token18") != null);
+	}
+
+	@Test
+	public void memoryConcurrencyTest() throws InterruptedException {
+		final InMemoryEnrollmentSessions store = new InMemoryEnrollmentSessions(HOUR, HOUR, 100, 0);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					EnrollmentSession session = getSession(thread + "-" + i);
+					store.addSession(session);
+					if (i % 3 == 0)
+						store.remove(session);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assert(store.size() <= 100);
+
+		// The amount of sessions is back at the maximum after adding more, so the counter matches the store
+		for (int i = 0; i < 200; i++)
+			store.addSession(getSession("more" + i));
+		assert(store.size() == 100);
+	}
+
+	@Test
+	public void memoryExpiryTest() throws InterruptedException {
+		InMemoryEnrollmentSessions store = new InMemoryEnrollmentSessions(1, HOUR, 10, 0);
+		store.addSession(getSession("token"));
+		Thread.sleep(5);
+
+		store.removeExpired(System.currentTimeMillis());
+		assert(store.size() == 0);
+		assert(store.getIdleExpirations() == 1);
+	}
+
+	@Test
+	public void replaceStateTest() throws IOException {
+		File file = File.createTempFile("sessions", ".db");
+		file.deleteOnExit();
+		MappedFileEnrollmentSessions first = new MappedFileEnrollmentSessions(file, 16 * 1024, HOUR, HOUR);
+		MappedFileEnrollmentSessions second = new MappedFileEnrollmentSessions(file, 16 * 1024, HOUR, HOUR);
+		first.addSession(getSession("token"));
+
+		// Only one of two processes that read the session in the same state can move it on
+		EnrollmentSession copy1 = first.getSession("token");
+		EnrollmentSession copy2 = second.getSession("token");
+		assert(first.replaceState(copy1, EnrollmentSession.State.PASSPORT_VERIFIED, EnrollmentSession.State.ISSUING));
+		assert(copy1.getState() == EnrollmentSession.State.ISSUING);
+		assert(!second.replaceState(copy2, EnrollmentSession.State.PASSPORT_VERIFIED, EnrollmentSession.State.ISSUING));
+		assert(second.getSession("token").getState() == EnrollmentSession.State.ISSUING);
+		assert(second.getSession("token").getCredentialList().equals(copy1.getCredentialList()));
+
+		InMemoryEnrollmentSessions memory = new InMemoryEnrollmentSessions(HOUR, HOUR, 10, 0);
+		EnrollmentSession session = getSession("token");
+		memory.addSession(session);
+		EnrollmentSession.State verified = EnrollmentSession.State.PASSPORT_VERIFIED;
+		assert(memory.replaceState(session, verified, EnrollmentSession.State.ISSUING));
+		assert(!memory.replaceState(session, verified, EnrollmentSession.State.ISSUING));
+		assert(!memory.replaceState(getSession("other"), verified, EnrollmentSession.State.ISSUING));
+	}
+
+	private EnrollmentSession getSession(String token) {
+		EnrollmentSession session = new EnrollmentSession(token, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+		session.setState(EnrollmentSession.State.PASSPORT_VERIFIED);
+
+		HashMap<String, String> attributes = new HashMap<>();
+		attributes.put("familyname", "Zeilemaker");
+		attributes.put("prefix", " ");
+		HashMap<CredentialIdentifier, HashMap<String, String>> credentials = new HashMap<>();
+		credentials.put(new CredentialIdentifier("irma-demo.MijnOverheid.fullName"), attributes);
+		session.setCredentialList(credentials);
+
+		return session;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.common.PassportDataMessage;
+import org.irmacard.mno.web.exceptions.EntityTooLargeException;
+import org.irmacard.mno.web.exceptions.InputInvalidException;
+import org.irmacard.mno.web.exceptions.SessionUnknownException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class EntityPrecheckTest {
+	@SuppressWarnings("unchecked")
+	private static Object read(String json) throws IOException {
+		Class<Object> type = (Class<Object>) (Class<?>) PassportDataMessage.class;
+		return new GsonJerseyProvider().readFrom(type, type, null, null, null,
+				new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test(expected = SessionUnknownException.class)
+	public void unknownSessionTest() throws IOException {
+		read("{\"sod\": \"AAAA\", \"dg1File\": {\"nested\": [1, 2]}, \"sessionToken\": \"unknown\"}");
+	}
+
+	@Test(expected = InputInvalidException.class)
+	public void missingSessionTokenTest() throws IOException {
+		read("{\"sod\": \"AAAA\"}");
+	}
+
+	@Test
+	public void knownSessionTest() throws IOException, InterruptedException {
+		EnrollmentSession session = new EnrollmentSession("precheck", new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+		EnrollmentSessions.getSessions().addSession(session);
+		long accessed = session.getLastAccessed();
+		Thread.sleep(5);
+
+		// The scan for the token at the end rewinds the stream to parse the message, and does not touch the session
+		assert(read("{\"sod\": \"AAAA\", \"dg1File\": {\"nested\": [1, 2]}, \"sessionToken\": \"precheck\"}") != null);
+		assert(session.getLastAccessed() == accessed);
+		EnrollmentSessions.getSessions().remove(session);
+	}
+
+	@Test
+	public void limitTest() throws IOException {
+		byte[] data = new byte[100];
+		InputStream in = new EntitySizeFeature.LimitedInputStream(new ByteArrayInputStream(data), 100);
+		assert(in.read(new byte[200], 0, 200) == 100);
+		assert(in.read() == -1);
+
+		in = new EntitySizeFeature.LimitedInputStream(new ByteArrayInputStream(data), 99);
+		try {
+			in.read(new byte[200], 0, 200);
+			assert(false);
+		} catch (EntityTooLargeException e) {
+			assert(e.getResponse().getStatus() == 413);
+		}
+	}
+}
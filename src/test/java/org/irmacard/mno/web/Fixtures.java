@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Recorded document data for use in tests and benchmarks.
+ */
+public class Fixtures {
+	private static final String EDL_MESSAGE = "fixtures/edl-message.json";
+	private static final String PASSPORT_MESSAGE = "fixtures/passport-message.json";
+
+	private Fixtures() {}
+
+	/**
+	 * @return the JSON of an {@link org.irmacard.mno.common.EDLDataMessage} of a Dutch driving license,
+	 * whose active authentication response is valid for the nonce 0x0102030405060708
+	 */
+	public static String getEDLJson(String sessionToken) {
+		return getResource(EDL_MESSAGE).trim().replace("${sessionToken}", sessionToken);
+	}
+
+	/**
+	 * @return the JSON of a recorded {@link org.irmacard.mno.common.PassportDataMessage} whose active
+	 * authentication response is valid for the nonce 0x0102030405060708, or null if no such recording is present
+	 */
+	public static String getPassportJson(String sessionToken) {
+		if (Fixtures.class.getClassLoader().getResource(PASSPORT_MESSAGE) == null)
+			return null;
+		return getResource(PASSPORT_MESSAGE).trim().replace("${sessionToken}", sessionToken);
+	}
+
+	private static String getResource(String name) {
+		InputStream stream = Fixtures.class.getClassLoader().getResourceAsStream(name);
+		if (stream == null)
+			throw new IllegalStateException("Fixture " + name + " not found");
+
+		try {
+			return new String(MNOConfiguration.convertSteamToByteArray(stream, 4096), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read fixture " + name, e);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.api.common.exceptions.ApiException;
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class GsonJerseyProviderTest {
+	static class Message {
+		String name;
+		int[] values;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Message read(byte[] json) throws IOException {
+		Class<Object> type = (Class<Object>) (Class<?>) Message.class;
+		return (Message) new GsonJerseyProvider().readFrom(type, type, null, null, null,
+				new ByteArrayInputStream(json));
+	}
+
+	private static Message read(String json) throws IOException {
+		return read(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void roundTripTest() throws IOException {
+		Message message = new Message();
+		message.name = "Zo\u00eb \u20ac\ud83d\ude00";
+		message.values = new int[] {1, 2, 3};
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+		new GsonJerseyProvider().writeTo(message, Message.class, Message.class, null, null, headers, out);
+		assert(headers.getFirst(HttpHeaders.CONTENT_LENGTH).equals(out.size()));
+
+		Message result = read(out.toByteArray());
+		assert(result.name.equals(message.name));
+		assert(Arrays.equals(result.values, message.values));
+	}
+
+	@Test
+	public void emptyTest() throws IOException {
+		assert(read("") == null);
+		assert(read(" \n") == null);
+	}
+
+	@Test(expected = ApiException.class)
+	public void malformedTest() throws IOException {
+		read("{\"name\": \"abc\", \"values\": [1, 2");
+	}
+
+	@Test(expected = ApiException.class)
+	public void trailingDataTest() throws IOException {
+		read("{\"name\": \"abc\"} {\"name\": \"def\"}");
+	}
+}
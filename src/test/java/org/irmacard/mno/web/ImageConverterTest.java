@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class ImageConverterTest {
+	@Test
+	public void convertTest() throws Exception {
+		byte[] bmp = ImageConverter.convert(png(120, 160), 2048);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(bmp));
+		assert(image.getWidth() == 120 && image.getHeight() == 160);
+	}
+
+	@Test
+	public void dimensionsTest() throws Exception {
+		assert(status(png(2049, 10)) == Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode());
+
+		// A PNG of a few bytes that claims to be 50000x50000 pixels is refused without decoding it
+		byte[] bomb = png(1, 1);
+		ByteBuffer header = ByteBuffer.wrap(bomb);
+		header.putInt(16, 50000).putInt(20, 50000); // Width and height in the IHDR chunk
+		CRC32 crc = new CRC32();
+		crc.update(bomb, 12, 17);
+		header.putInt(29, (int) crc.getValue());
+		assert(status(bomb) == Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode());
+
+		assert(status(new byte[] {1, 2, 3}) == Response.Status.NOT_IMPLEMENTED.getStatusCode());
+	}
+
+	private static int status(byte[] image) {
+		try {
+			ImageConverter.convert(image, 2048);
+			return 200;
+		} catch (WebApplicationException e) {
+			return e.getResponse().getStatus();
+		}
+	}
+
+	private static byte[] png(int width, int height) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+public class ImageResponseTest {
+	@Test
+	public void base64Test() throws IOException {
+		Random random = new Random(1);
+		for (int length : new int[] {0, 1, 2, 3, 100000, 921654}) {
+			byte[] bmp = new byte[length];
+			random.nextBytes(bmp);
+
+			Response response = PassportEnrollmentResource.base64Response(bmp);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			((StreamingOutput) response.getEntity()).write(out);
+
+			String expected = Base64.getEncoder().encodeToString(bmp);
+			assert(new String(out.toByteArray(), StandardCharsets.US_ASCII).equals(expected));
+			assert(response.getHeaderString(HttpHeaders.CONTENT_LENGTH).equals(Integer.toString(expected.length())));
+		}
+	}
+
+	@Test
+	public void acceptTest() {
+		assert(!PassportEnrollmentResource.prefersBinary(accepting()));
+		assert(!PassportEnrollmentResource.prefersBinary(accepting("*/*")));
+		assert(!PassportEnrollmentResource.prefersBinary(accepting("text/plain", "image/bmp")));
+		assert(PassportEnrollmentResource.prefersBinary(accepting("image/bmp", "text/plain")));
+		assert(PassportEnrollmentResource.prefersBinary(accepting("image/*")));
+	}
+
+	private static HttpHeaders accepting(String... types) {
+		final List<MediaType> accepted = new ArrayList<>();
+		for (String type : types)
+			accepted.add(MediaType.valueOf(type));
+		return (HttpHeaders) Proxy.newProxyInstance(HttpHeaders.class.getClassLoader(),
+				new Class<?>[] {HttpHeaders.class}, (proxy, method, args) -> {
+					if (method.getName().equals("getAcceptableMediaTypes"))
+						return accepted;
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
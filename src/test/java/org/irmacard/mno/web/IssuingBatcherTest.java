@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.api.common.ClientQr;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class IssuingBatcherTest {
+	/**
+	 * Batcher that answers each JWT starting with "fail" with an exception, and all others with null
+	 */
+	private static class TestBatcher extends IssuingBatcher {
+		final List<String> posted = new ArrayList<>();
+
+		TestBatcher(long window, int size) {
+			super(window, size, 100);
+		}
+
+		@Override
+		CompletionStage<ClientQr> post(String jwt, Span trace) {
+			synchronized (posted) {
+				posted.add(jwt);
+			}
+			CompletableFuture<ClientQr> result = new CompletableFuture<>();
+			if (jwt.startsWith("fail"))
+				result.completeExceptionally(new IllegalStateException(jwt));
+			else
+				result.complete(null);
+			return result;
+		}
+	}
+
+	@Test
+	public void sizeTest() throws Exception {
+		TestBatcher batcher = new TestBatcher(TimeUnit.HOURS.toMillis(1), 3);
+
+		CompletableFuture<ClientQr> first = batcher.submit("a", Span.NOOP).toCompletableFuture();
+		CompletableFuture<ClientQr> second = batcher.submit("fail", Span.NOOP).toCompletableFuture();
+		assert(!first.isDone());
+		assert(batcher.posted.isEmpty());
+
+		// The third request fills the batch, so that it is sent without waiting for the window
+		CompletableFuture<ClientQr> third = batcher.submit("c", Span.NOOP).toCompletableFuture();
+		first.get(1, TimeUnit.SECONDS);
+		third.get(1, TimeUnit.SECONDS);
+		assert(batcher.posted.size() == 3);
+
+		// A failing request does not affect the others
+		try {
+			second.get(1, TimeUnit.SECONDS);
+			assert(false);
+		} catch (ExecutionException e) {
+			assert(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void windowTest() throws Exception {
+		TestBatcher batcher = new TestBatcher(50, 100);
+
+		CompletableFuture<ClientQr> first = batcher.submit("a", Span.NOOP).toCompletableFuture();
+		CompletableFuture<ClientQr> second = batcher.submit("b", Span.NOOP).toCompletableFuture();
+		assert(!first.isDone());
+
+		first.get(1, TimeUnit.SECONDS);
+		second.get(1, TimeUnit.SECONDS);
+		assert(batcher.posted.size() == 2);
+	}
+
+	@Test
+	public void inFlightTest() throws Exception {
+		final List<CompletableFuture<ClientQr>> posted = new ArrayList<>();
+		IssuingBatcher batcher = new IssuingBatcher(TimeUnit.HOURS.toMillis(1), 5, 2) {
+			@Override
+			CompletionStage<ClientQr> post(String jwt, Span trace) {
+				CompletableFuture<ClientQr> result = new CompletableFuture<>();
+				synchronized (posted) {
+					posted.add(result);
+				}
+				return result;
+			}
+		};
+
+		List<CompletableFuture<ClientQr>> results = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+			results.add(batcher.submit("jwt" + i, Span.NOOP).toCompletableFuture());
+
+		// The batch is full, but only two of its requests are sent until one of them is answered
+		assert(posted.size() == 2);
+		posted.get(0).complete(null);
+		assert(results.get(0).isDone());
+		assert(posted.size() == 3);
+
+		posted.get(1).completeExceptionally(new IllegalStateException());
+		posted.get(2).complete(null);
+		assert(posted.size() == 5);
+		posted.get(3).complete(null);
+		posted.get(4).complete(null);
+		for (int i = 0; i < 5; i++)
+			assert(results.get(i).isDone());
+		assert(results.get(1).isCompletedExceptionally());
+	}
+
+	@Test
+	public void immediateFailureTest() throws Exception {
+		// Like with an open circuit breaker, every request fails before post() returns
+		IssuingBatcher batcher = new IssuingBatcher(TimeUnit.HOURS.toMillis(1), 100000, 1) {
+			@Override
+			CompletionStage<ClientQr> post(String jwt, Span trace) {
+				CompletableFuture<ClientQr> result = new CompletableFuture<>();
+				result.completeExceptionally(new IllegalStateException(jwt));
+				return result;
+			}
+		};
+
+		// Sending the full batch through the single slot does not overflow the stack
+		List<CompletableFuture<ClientQr>> results = new ArrayList<>();
+		for (int i = 0; i < 100000; i++)
+			results.add(batcher.submit("jwt" + i, Span.NOOP).toCompletableFuture());
+		for (CompletableFuture<ClientQr> result : results)
+			assert(result.isCompletedExceptionally());
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class LogfmtFormatterTest {
+	@Test
+	public void eventTest() {
+		LogRecord record = new LogRecord(Level.INFO, "event=api_request type=issue");
+		record.setLoggerName("org.irmacard.mno.web.ApiClient");
+		record.setMillis(0);
+
+		String line = new LogfmtFormatter().format(new AsyncLogHandler.Record(record, "http worker 1"));
+		assert(line.equals("time=1970-01-01T00:00:00Z level=INFO logger=ApiClient thread=\"http worker 1\" "
+				+ "event=api_request type=issue\n"));
+	}
+
+	@Test
+	public void messageTest() {
+		LogRecord record = new LogRecord(Level.WARNING, "Some \"quoted\" message");
+		record.setLoggerName("org.irmacard.mno.web.ApiClient");
+		record.setMillis(0);
+
+		String line = new LogfmtFormatter().format(record);
+		assert(line.equals("time=1970-01-01T00:00:00Z level=WARNING logger=ApiClient "
+				+ "msg=\"Some \\\"quoted\\\" message\"\n"));
+	}
+
+	@Test
+	public void lazyTest() {
+		final int[] calls = {0};
+		Object value = Logging.lazy(() -> {
+			calls[0]++;
+			return "a b";
+		});
+
+		assert(calls[0] == 0);
+		assert(value.toString().equals("\"a b\""));
+		assert(calls[0] == 1);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.irmacard.mno.common.util.GsonUtil;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+	@Test
+	public void counterTest() {
+		Metrics metrics = new Metrics();
+		Metrics.Counter counter = metrics.counter("test_total", "A test counter", "result");
+		counter.inc("ok");
+		counter.inc("ok");
+		counter.inc("fa\"il");
+
+		// Registering again returns the same counter
+		assert(metrics.counter("test_total", "A test counter", "result").get("ok") == 2);
+
+		StringBuilder sb = new StringBuilder();
+		metrics.write(sb);
+		assert(sb.toString().equals("# HELP test_total A test counter\n"
+				+ "# TYPE test_total counter\n"
+				+ "test_total{result=\"fa\\\"il\"} 1\n"
+				+ "test_total{result=\"ok\"} 2\n"));
+	}
+
+	@Test
+	public void histogramTest() {
+		Metrics metrics = new Metrics();
+		Metrics.Histogram histogram = metrics.histogram("test_seconds", "A test histogram", "path");
+		histogram.observe(TimeUnit.MILLISECONDS.toNanos(3), "/start");
+		histogram.observe(TimeUnit.MILLISECONDS.toNanos(30), "/start");
+		histogram.observe(TimeUnit.SECONDS.toNanos(30), "/start");
+
+		StringBuilder sb = new StringBuilder();
+		metrics.write(sb);
+		String output = sb.toString();
+		assert(output.contains("# TYPE test_seconds histogram\n"));
+		assert(output.contains("test_seconds_bucket{path=\"/start\",le=\"0.005\"} 1\n"));
+		assert(output.contains("test_seconds_bucket{path=\"/start\",le=\"0.025\"} 1\n"));
+		assert(output.contains("test_seconds_bucket{path=\"/start\",le=\"0.05\"} 2\n"));
+		assert(output.contains("test_seconds_bucket{path=\"/start\",le=\"10.0\"} 2\n"));
+		assert(output.contains("test_seconds_bucket{path=\"/start\",le=\"+Inf\"} 3\n"));
+		assert(output.contains("test_seconds_count{path=\"/start\"} 3\n"));
+	}
+
+	@Test
+	public void gaugeTest() {
+		Metrics metrics = new Metrics();
+		metrics.gauge("test_sessions", "A test gauge", () -> 42);
+
+		StringBuilder sb = new StringBuilder();
+		metrics.write(sb);
+		assert(sb.toString().endsWith("test_sessions 42\n"));
+	}
+
+	@Test
+	public void adminAuthTest() {
+		assert(AdminAuthFeature.Filter.isAuthorized("Bearer s3cret", "s3cret"));
+		assert(AdminAuthFeature.Filter.isAuthorized("bearer s3cret", "s3cret"));
+		assert(!AdminAuthFeature.Filter.isAuthorized("Bearer s3cre", "s3cret"));
+		assert(!AdminAuthFeature.Filter.isAuthorized("Basic s3cret", "s3cret"));
+		assert(!AdminAuthFeature.Filter.isAuthorized("s3cret", "s3cret"));
+		assert(!AdminAuthFeature.Filter.isAuthorized(null, "s3cret"));
+	}
+
+	@Test
+	public void adminTokenNotLoggedTest() {
+		MNOConfiguration conf = GsonUtil.getGson().fromJson("{\"admin_token\": \"s3cret\"}", MNOConfiguration.class);
+		assert(conf.getAdminToken().equals("s3cret"));
+		assert(!conf.toString().contains("s3cret"));
+		assert(conf.toString().contains("admin_token"));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void burstTest() {
+		RateLimiter limiter = new RateLimiter(1024);
+		long now = RateLimiter.now();
+
+		// A full bucket allows a burst, after which a token becomes available every 1/rate seconds
+		for (int i = 0; i < 5; i++)
+			assert(limiter.acquire("10.0.0.1", 2, 5, now) == 0);
+		long wait = limiter.acquire("10.0.0.1", 2, 5, now);
+		assert(wait > 0 && wait <= SECOND / 2);
+
+		assert(limiter.acquire("10.0.0.1", 2, 5, now + SECOND / 2) == 0);
+		assert(limiter.acquire("10.0.0.1", 2, 5, now + SECOND / 2) > 0);
+
+		// Other clients have their own bucket
+		assert(limiter.acquire("10.0.0.2", 2, 5, now) == 0);
+
+		// After a while the bucket is full again
+		for (int i = 0; i < 5; i++)
+			assert(limiter.acquire("10.0.0.1", 2, 5, now + 10 * SECOND) == 0);
+		assert(limiter.acquire("10.0.0.1", 2, 5, now + 10 * SECOND) > 0);
+	}
+
+	@Test
+	public void globalTest() {
+		RateLimiter limiter = new RateLimiter(1024);
+		long now = RateLimiter.now();
+
+		assert(limiter.acquireGlobal(1, 1, now) == 0);
+		assert(limiter.acquireGlobal(1, 1, now) > 0);
+		assert(limiter.acquireGlobal(1, 1, now + SECOND) == 0);
+
+		// No limit
+		for (int i = 0; i < 100; i++)
+			assert(limiter.acquireGlobal(0, 1, now) == 0);
+	}
+
+	@Test
+	public void clientAddressTest() {
+		// Addresses added by the client itself are ignored
+		assert(RateLimitFeature.Filter.getClientAddress("10.0.0.1", 1).equals("10.0.0.1"));
+		assert(RateLimitFeature.Filter.getClientAddress("1.2.3.4, 10.0.0.1", 1).equals("10.0.0.1"));
+		assert(RateLimitFeature.Filter.getClientAddress("1.2.3.4, 10.0.0.1, 192.168.0.1", 2).equals("10.0.0.1"));
+
+		// With fewer addresses than proxies, all of them were added by a trusted proxy
+		assert(RateLimitFeature.Filter.getClientAddress("10.0.0.1", 2).equals("10.0.0.1"));
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SurnamePrefixesTest {
+	@Test
+	public void longestPrefixTest() {
+		SurnamePrefixes prefixes = SurnamePrefixes.getDefault();
+
+		assert(Arrays.equals(prefixes.split("VAN DER BERG"), new String[] {"van der", "berg"}));
+		assert(Arrays.equals(prefixes.split("Van 't Hek"), new String[] {"van 't", "hek"}));
+		assert(Arrays.equals(prefixes.split("Uijt te de Kamp"), new String[] {"uijt te de", "kamp"}));
+		assert(Arrays.equals(prefixes.split("de Vries"), new String[] {"de", "vries"}));
+	}
+
+	@Test
+	public void noPrefixTest() {
+		SurnamePrefixes prefixes = SurnamePrefixes.getDefault();
+
+		assert(Arrays.equals(prefixes.split("Zeilemaker"), new String[] {" ", "zeilemaker"}));
+		// A prefix must be followed by a space
+		assert(Arrays.equals(prefixes.split("Vandenberg"), new String[] {" ", "vandenberg"}));
+		assert(Arrays.equals(prefixes.split("van"), new String[] {" ", "van"}));
+	}
+
+	@Test
+	public void countryTest() {
+		assert(Arrays.equals(SurnamePrefixes.forCountry("D").split("VON DER LEYEN"), new String[] {"von der", "leyen"}));
+		assert(Arrays.equals(SurnamePrefixes.forCountry("NLD").split("VON DER LEYEN"), new String[] {" ", "von der leyen"}));
+		assert(Arrays.equals(SurnamePrefixes.forCountry("BEL").split("du Bois"), new String[] {"du", "bois"}));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015, Wouter Lueks
+ * Copyright (c) 2015, Sietse Ringers
+ * Copyright (c) 2015, Fabian van den Broek
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.mno.web;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class TracingTest {
+	private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+	@Test
+	public void propagationTest() {
+		Span root = Tracing.start("test", "00-" + TRACE_ID + "-00f067aa0ba902b7-01", 0, true);
+		assert(root.isSampled());
+		assert(root.getTraceId().equals(TRACE_ID));
+		assert(root.getParentId().equals("00f067aa0ba902b7"));
+
+		Span child = root.child("child");
+		assert(child.getTraceId().equals(TRACE_ID));
+		assert(child.getTraceparent().startsWith("00-" + TRACE_ID + "-"));
+		assert(child.getTraceparent().length() == 55);
+
+		child.end();
+		root.end();
+
+		List<Span> spans = Tracing.getRecent(TRACE_ID, 10);
+		assert(spans.size() == 2);
+		assert(spans.get(0) == root);
+		assert(spans.get(1) == child);
+		assert(child.getParentId().equals(spans.get(0).getTraceparent().substring(36, 52)));
+	}
+
+	@Test
+	public void notSampledTest() {
+		// The client did not sample this trace
+		String unsampled = "00-" + TRACE_ID + "-00f067aa0ba902b7-00";
+		assert(!Tracing.start("test", unsampled, 0, true).isSampled());
+		assert(Tracing.start("test", unsampled, 0, true).child("child") == Span.NOOP);
+
+		// Invalid headers are ignored, and by default requests without header are not sampled
+		assert(!Tracing.start("test", "00-" + TRACE_ID + "-00f067aa0ba902b7", 0, true).isSampled());
+		assert(!Tracing.start("test", "00-" + TRACE_ID.replace('4', 'x') + "-00f067aa0ba902b7-01", 0, true).isSampled());
+		assert(!Tracing.start("test", null).isSampled());
+	}
+
+	@Test
+	public void clientSamplingTest() {
+		// Unless enabled, the sampled flag of the client is ignored and only the sample rate counts
+		String sampled = "00-" + TRACE_ID + "-00f067aa0ba902b7-01";
+		assert(!Tracing.start("test", sampled).isSampled());
+		assert(!Tracing.start("test", sampled, 0, false).isSampled());
+
+		// A request that we sample ourselves still continues the trace of the client
+		Span span = Tracing.start("test", "00-" + TRACE_ID + "-00f067aa0ba902b7-00", 1, false);
+		assert(span.isSampled());
+		assert(span.getTraceId().equals(TRACE_ID));
+		assert(span.getParentId().equals("00f067aa0ba902b7"));
+	}
+}